@@ -8,6 +8,7 @@ import android.app.PendingIntent;
 import android.content.*;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Parcelable;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 import android.support.v4.content.ContextCompat;
@@ -25,12 +26,18 @@ import com.crossbowffs.nekosms.loader.InboxSmsLoader;
 import com.crossbowffs.nekosms.provider.DatabaseContract;
 import com.crossbowffs.nekosms.utils.AppOpsUtils;
 import com.crossbowffs.nekosms.utils.Xlog;
-import com.crossbowffs.nekosms.widget.CursorWrapper;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public class BlockedSmsReceiver extends BroadcastReceiver {
     private static final int NOTIFICATION_SUMMARY_ID = 1;
     private static final String NOTIFICATION_GROUP = "blocked_message";
     private static final String NOTIFICATION_CHANNEL = "blocked_message";
+    // The notification shade only shows a handful of messages anyway,
+    // so during a burst, the rest are only counted in the summary
+    private static final int MAX_NOTIFICATIONS_PER_BATCH = 10;
+    private static final int MAX_SUMMARY_LINES = 5;
 
     private static int uriToNotificationId(Uri uri) {
         return (int)ContentUris.parseId(uri);
@@ -73,7 +80,7 @@ public class BlockedSmsReceiver extends BroadcastReceiver {
             .build();
     }
 
-    private Notification buildNotificationMulti(Context context, CursorWrapper<SmsMessageData> messages) {
+    private Notification buildNotificationMulti(Context context, List<SmsMessageData> newMessages, int count) {
         Intent viewIntent = new Intent(context, MainActivity.class);
         viewIntent.setAction(Intent.ACTION_VIEW);
         viewIntent.putExtra(MainActivity.EXTRA_SECTION, MainActivity.EXTRA_SECTION_BLOCKED_MESSAGES);
@@ -82,10 +89,10 @@ public class BlockedSmsReceiver extends BroadcastReceiver {
         PendingIntent dismissIntent = createPendingIntent(context, BroadcastConsts.ACTION_DISMISS_NOTIFICATION, null);
 
         NotificationCompat.InboxStyle inboxStyle = new NotificationCompat.InboxStyle();
-        SmsMessageData data = new SmsMessageData();
         Spanned firstLine = null;
-        while (messages.moveToNext()) {
-            data = messages.get(data);
+        int end = Math.max(0, newMessages.size() - MAX_SUMMARY_LINES);
+        for (int i = newMessages.size() - 1; i >= end; --i) {
+            SmsMessageData data = newMessages.get(i);
             String escapedSender = Html.escapeHtml(data.getSender().replace('\n', ' '));
             String escapedBody = Html.escapeHtml(data.getBody().replace('\n', ' '));
             Spanned line = Html.fromHtml(context.getString(R.string.format_notification_multi_item, escapedSender, escapedBody));
@@ -97,10 +104,10 @@ public class BlockedSmsReceiver extends BroadcastReceiver {
 
         return new NotificationCompat.Builder(context, NOTIFICATION_CHANNEL)
             .setSmallIcon(R.drawable.ic_message_blocked_white_24dp)
-            .setContentTitle(context.getString(R.string.format_notification_multi_count, messages.getCount()))
+            .setContentTitle(context.getString(R.string.format_notification_multi_count, count))
             .setContentText(firstLine)
             .setStyle(inboxStyle)
-            .setNumber(messages.getCount())
+            .setNumber(count)
             .setContentIntent(viewPendingIntent)
             .setDeleteIntent(dismissIntent)
             .setCategory(NotificationCompat.CATEGORY_MESSAGE)
@@ -141,48 +148,53 @@ public class BlockedSmsReceiver extends BroadcastReceiver {
         notificationManager.createNotificationChannel(channel);
     }
 
-    private void updateSummaryNotification(Context context, boolean creating) {
+    /**
+     * Updates the summary notification after the number of unseen
+     * messages has changed. The summary lists the given new messages
+     * (oldest first), which may be null when messages were removed;
+     * the older unseen messages are only counted, not listed, so that
+     * a burst doesn't have to load every unseen message for each batch.
+     */
+    private void updateSummaryNotification(Context context, List<SmsMessageData> newMessages) {
         NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
-        try (CursorWrapper<SmsMessageData> messages = BlockedSmsLoader.get().queryUnseen(context)) {
-            if (messages.getCount() == 0) {
-                notificationManager.cancel(NOTIFICATION_SUMMARY_ID);
-            } else if (creating) {
-                // We don't update the summary notification unless we are *adding*,
-                // not *removing* a notification. This prevents apps like Pushbullet
-                // from mirroring the summary notification when dismissing individual
-                // notifications.
-                //
-                // This works because on Android < 7.0, it's impossible to remove
-                // the notifications individually, and on Android >= 7.0, the summary
-                // notification is never shown so it doesn't need to be updated.
-                Notification notification;
-                if (messages.getCount() == 1) {
-                    messages.moveToNext();
-                    notification = buildNotificationSingle(context, messages.get(), true);
-                } else {
-                    notification = buildNotificationMulti(context, messages);
-                }
-
-                // On pre-N, we apply the notification style to the summary notification
-                // since the individual notifications are not displayed.
-                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
-                    Xlog.d("Applying style to summary notification");
-                    applyNotificationStyle(context, notification);
-                }
-                notificationManager.notify(NOTIFICATION_SUMMARY_ID, notification);
+        int count = BlockedSmsLoader.get().countUnseen(context);
+        if (count == 0) {
+            notificationManager.cancel(NOTIFICATION_SUMMARY_ID);
+        } else if (newMessages != null && !newMessages.isEmpty()) {
+            // We don't update the summary notification unless we are *adding*,
+            // not *removing* a notification. This prevents apps like Pushbullet
+            // from mirroring the summary notification when dismissing individual
+            // notifications.
+            //
+            // This works because on Android < 7.0, it's impossible to remove
+            // the notifications individually, and on Android >= 7.0, the summary
+            // notification is never shown so it doesn't need to be updated.
+            Notification notification;
+            if (count == 1) {
+                notification = buildNotificationSingle(context, newMessages.get(newMessages.size() - 1), true);
+            } else {
+                notification = buildNotificationMulti(context, newMessages, count);
+            }
+
+            // On pre-N, we apply the notification style to the summary notification
+            // since the individual notifications are not displayed.
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+                Xlog.d("Applying style to summary notification");
+                applyNotificationStyle(context, notification);
             }
+            notificationManager.notify(NOTIFICATION_SUMMARY_ID, notification);
         }
     }
 
     private void removeNotification(Context context, Uri messageUri) {
         NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
         notificationManager.cancel(uriToNotificationId(messageUri));
-        updateSummaryNotification(context, false);
+        updateSummaryNotification(context, null);
     }
 
-    private void displayNotification(Context context, Uri messageUri) {
+    private void displayNotifications(Context context, Uri[] messageUris) {
         if (!areNotificationsEnabled(context)) {
-            BlockedSmsLoader.get().setSeenStatus(context, messageUri, true);
+            BlockedSmsLoader.get().setSeenStatus(context, messageUris, true);
             return;
         }
 
@@ -191,29 +203,60 @@ public class BlockedSmsReceiver extends BroadcastReceiver {
             createChannel(context);
         }
 
-        SmsMessageData messageData = BlockedSmsLoader.get().query(context, messageUri);
-        Notification notification = buildNotificationSingle(context, messageData, false);
-        NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
+        int start = Math.max(0, messageUris.length - MAX_NOTIFICATIONS_PER_BATCH);
+        ArrayList<Uri> uris = new ArrayList<>(messageUris.length - start);
+        ArrayList<SmsMessageData> messages = new ArrayList<>(messageUris.length - start);
+        for (int i = start; i < messageUris.length; ++i) {
+            SmsMessageData messageData = BlockedSmsLoader.get().query(context, messageUris[i]);
+            if (messageData != null) {
+                uris.add(messageUris[i]);
+                messages.add(messageData);
+            }
+        }
 
-        // On N and above, we apply the notification style to each individual notification.
-        // This is useful for heads-up notifications and notification mirroring apps
-        // like Pushbullet since the user can interact with the individual messages.
-        // Unfortunately on pre-N this is not possible without un-merging the notifications.
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            Xlog.d("Applying style to individual notification");
-            applyNotificationStyle(context, notification);
+        NotificationManagerCompat notificationManager = NotificationManagerCompat.from(context);
+        for (int i = 0; i < messages.size(); ++i) {
+            SmsMessageData messageData = messages.get(i);
+            Notification notification = buildNotificationSingle(context, messageData, false);
+
+            // On N and above, we apply the notification style to each individual notification.
+            // This is useful for heads-up notifications and notification mirroring apps
+            // like Pushbullet since the user can interact with the individual messages.
+            // Unfortunately on pre-N this is not possible without un-merging the notifications.
+            // Only the newest message in a batch alerts the user, so a burst of messages
+            // doesn't play the notification sound over and over.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && i == messages.size() - 1) {
+                Xlog.d("Applying style to individual notification");
+                applyNotificationStyle(context, notification);
+            }
+            notificationManager.notify(uriToNotificationId(uris.get(i)), notification);
         }
-        notificationManager.notify(uriToNotificationId(messageUri), notification);
-        updateSummaryNotification(context, true);
+        updateSummaryNotification(context, messages);
     }
 
     private void onReceiveSms(Context context, Intent intent) {
-        Uri messageUri = intent.getParcelableExtra(BroadcastConsts.EXTRA_MESSAGE);
-        if (messageUri == null) {
-            return;
+        Uri[] messageUris;
+        Parcelable[] parcelables = intent.getParcelableArrayExtra(BroadcastConsts.EXTRA_MESSAGES);
+        if (parcelables != null) {
+            messageUris = new Uri[parcelables.length];
+            for (int i = 0; i < parcelables.length; ++i) {
+                messageUris[i] = (Uri)parcelables[i];
+            }
+        } else {
+            // The phone process keeps running the old version of the
+            // module until the next reboot, so it might still be
+            // sending one message per broadcast
+            Uri messageUri = intent.getParcelableExtra(BroadcastConsts.EXTRA_MESSAGE);
+            if (messageUri == null) {
+                return;
+            }
+            messageUris = new Uri[] {messageUri};
         }
 
-        displayNotification(context, messageUri);
+        if (messageUris.length == 0) {
+            return;
+        }
+        displayNotifications(context, messageUris);
     }
 
     private void onDeleteSms(Context context, Intent intent) {
@@ -275,7 +318,7 @@ public class BlockedSmsReceiver extends BroadcastReceiver {
             BlockedSmsLoader.get().markAllSeen(context);
         }
 
-        updateSummaryNotification(context, false);
+        updateSummaryNotification(context, null);
     }
 
     @Override
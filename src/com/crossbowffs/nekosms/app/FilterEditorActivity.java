@@ -1,8 +1,12 @@
 package com.crossbowffs.nekosms.app;
 
+import android.Manifest;
 import android.app.Fragment;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.support.design.widget.TabLayout;
 import android.support.v4.app.ActivityCompat;
@@ -10,6 +14,8 @@ import android.support.v4.view.ViewPager;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -17,8 +23,13 @@ import android.widget.Toast;
 import com.crossbowffs.nekosms.R;
 import com.crossbowffs.nekosms.data.*;
 import com.crossbowffs.nekosms.loader.FilterRuleLoader;
+import com.crossbowffs.nekosms.utils.CjkBigrams;
+import com.crossbowffs.nekosms.utils.PermissionUtils;
+import com.crossbowffs.nekosms.utils.TokenList;
 import com.crossbowffs.nekosms.widget.FragmentPagerAdapter;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -63,6 +74,7 @@ public class FilterEditorActivity extends AppCompatActivity {
     }
 
     public static final String EXTRA_ACTION = "action";
+    private static final int REQUEST_SIM_SCOPE = 1;
 
     private Toolbar mToolbar;
     private TabLayout mTabLayout;
@@ -138,12 +150,23 @@ public class FilterEditorActivity extends AppCompatActivity {
         return super.onCreateOptionsMenu(menu);
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        // Subscriptions can only be listed on Android 5.1+
+        boolean multiSim = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1;
+        menu.findItem(R.id.menu_item_sim_scope).setVisible(multiSim);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
         case android.R.id.home:
             saveIfValid();
             return true;
+        case R.id.menu_item_sim_scope:
+            chooseSimScope();
+            return true;
         case R.id.menu_item_discard_changes:
             discardAndFinish();
             return true;
@@ -157,9 +180,55 @@ public class FilterEditorActivity extends AppCompatActivity {
     }
 
     private String validatePatternString(SmsFilterPatternData patternData, int fieldNameId) {
-        if (patternData.getMode() != SmsFilterMode.REGEX) {
+        switch (patternData.getMode()) {
+        case REGEX:
+            return validateRegexPattern(patternData, fieldNameId);
+        case KEYWORD:
+            return validateKeywordPattern(patternData, fieldNameId);
+        case SIMILAR:
+            return validateSimilarPattern(patternData, fieldNameId);
+        default:
             return null;
         }
+    }
+
+    private String validateKeywordPattern(SmsFilterPatternData patternData, int fieldNameId) {
+        String pattern = patternData.getPattern();
+        if (TokenList.tokenize(pattern).size() == 0) {
+            return getString(R.string.format_invalid_keyword_message, getString(fieldNameId));
+        }
+
+        // CJK text has no spaces between words, so a whole run of it
+        // is a single word and the rule would almost never match
+        if (CjkBigrams.containsCjk(pattern)) {
+            return getString(R.string.format_invalid_keyword_cjk_message, getString(fieldNameId));
+        }
+        return null;
+    }
+
+    private String validateSimilarPattern(SmsFilterPatternData patternData, int fieldNameId) {
+        if (patternData.getField() != SmsFilterField.BODY) {
+            return getString(R.string.invalid_similar_field_message);
+        }
+        if (mFilter.getAction() != SmsFilterAction.BLOCK) {
+            return getString(R.string.invalid_similar_action_message);
+        }
+        int distance;
+        try {
+            distance = Integer.parseInt(patternData.getPattern().trim());
+        } catch (NumberFormatException e) {
+            distance = -1;
+        }
+        if (distance < 0 || distance > SmsFilterPatternData.MAX_SIMILAR_DISTANCE) {
+            return getString(R.string.format_invalid_similar_message, getString(fieldNameId), SmsFilterPatternData.MAX_SIMILAR_DISTANCE);
+        }
+        return null;
+    }
+
+    private String validateRegexPattern(SmsFilterPatternData patternData, int fieldNameId) {
+        if (!FilterEditorFragment.isNormalizationSupported(patternData.getMode(), patternData.getNormalization())) {
+            return getString(R.string.format_invalid_regex_skeleton_message, getString(fieldNameId));
+        }
         String pattern = patternData.getPattern();
         try {
             // We don't need the actual compiled pattern, this
@@ -234,6 +303,62 @@ public class FilterEditorActivity extends AppCompatActivity {
         return FilterRuleLoader.get().update(this, mFilterUri, mFilter, true);
     }
 
+    private void chooseSimScope() {
+        String[] permissions = {Manifest.permission.READ_PHONE_STATE};
+        if (PermissionUtils.checkPermissions(this, permissions, null)) {
+            showSimScopeDialog();
+        } else {
+            ActivityCompat.requestPermissions(this, permissions, REQUEST_SIM_SCOPE);
+        }
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        if (requestCode != REQUEST_SIM_SCOPE) {
+            super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+            return;
+        }
+        if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            showSimScopeDialog();
+        } else {
+            Toast.makeText(this, R.string.filter_sim_scope_permission_denied, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    @SuppressWarnings("MissingPermission")
+    private void showSimScopeDialog() {
+        List<SubscriptionInfo> subscriptions = SubscriptionManager.from(this).getActiveSubscriptionInfoList();
+        final ArrayList<Integer> subIds = new ArrayList<>();
+        ArrayList<String> names = new ArrayList<>();
+        subIds.add(SmsFilterData.ALL_SUBSCRIPTIONS);
+        names.add(getString(R.string.filter_sim_scope_all));
+        if (subscriptions != null) {
+            for (SubscriptionInfo info : subscriptions) {
+                subIds.add(info.getSubscriptionId());
+                names.add(getString(R.string.format_filter_sim_scope_item, info.getSimSlotIndex() + 1, info.getDisplayName()));
+            }
+        }
+
+        // Keep the current scope selectable even if that SIM card
+        // is not inserted right now
+        int currentSubId = mFilter.getSubId();
+        if (!subIds.contains(currentSubId)) {
+            subIds.add(currentSubId);
+            names.add(getString(R.string.format_filter_sim_scope_inactive, currentSubId));
+        }
+
+        new AlertDialog.Builder(this)
+            .setTitle(R.string.filter_sim_scope)
+            .setSingleChoiceItems(names.toArray(new String[names.size()]), subIds.indexOf(currentSubId), new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    mFilter.setSubId(subIds.get(which));
+                    dialog.dismiss();
+                }
+            })
+            .show();
+    }
+
     private void showInvalidPatternDialog(String errorMessage) {
         new AlertDialog.Builder(this)
             .setTitle(R.string.invalid_pattern_title)
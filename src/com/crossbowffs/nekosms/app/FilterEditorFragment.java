@@ -15,6 +15,7 @@ import android.widget.Spinner;
 import com.crossbowffs.nekosms.R;
 import com.crossbowffs.nekosms.data.SmsFilterField;
 import com.crossbowffs.nekosms.data.SmsFilterMode;
+import com.crossbowffs.nekosms.data.SmsFilterNormalization;
 import com.crossbowffs.nekosms.data.SmsFilterPatternData;
 import com.crossbowffs.nekosms.utils.MapUtils;
 import com.crossbowffs.nekosms.widget.EnumAdapter;
@@ -45,8 +46,10 @@ public class FilterEditorFragment extends Fragment {
     private EditText mPatternEditText;
     private Spinner mModeSpinner;
     private Spinner mCaseSpinner;
+    private Spinner mNormalizationSpinner;
     private EnumAdapter<SmsFilterMode> mModeAdapter;
     private EnumAdapter<CaseSensitivity> mCaseAdapter;
+    private EnumAdapter<SmsFilterNormalization> mNormalizationAdapter;
     private SmsFilterPatternData mPatternData;
 
     private FilterEditorActivity getEditorActivity() {
@@ -66,6 +69,7 @@ public class FilterEditorFragment extends Fragment {
         mPatternEditText = (EditText)view.findViewById(R.id.filter_editor_pattern_edittext);
         mModeSpinner = (Spinner)view.findViewById(R.id.filter_editor_mode_spinner);
         mCaseSpinner = (Spinner)view.findViewById(R.id.filter_editor_case_spinner);
+        mNormalizationSpinner = (Spinner)view.findViewById(R.id.filter_editor_normalization_spinner);
         return view;
     }
 
@@ -82,6 +86,20 @@ public class FilterEditorFragment extends Fragment {
         mCaseAdapter.setStringMap(getCaseMap());
         mCaseSpinner.setAdapter(mCaseAdapter);
 
+        mNormalizationAdapter = new EnumAdapter<SmsFilterNormalization>(getEditorActivity(), android.R.layout.simple_spinner_dropdown_item, SmsFilterNormalization.class) {
+            @Override
+            public boolean areAllItemsEnabled() {
+                return false;
+            }
+
+            @Override
+            public boolean isEnabled(int position) {
+                return isNormalizationSupported(mPatternData.getMode(), getItem(position));
+            }
+        };
+        mNormalizationAdapter.setStringMap(getNormalizationMap());
+        mNormalizationSpinner.setAdapter(mNormalizationAdapter);
+
         // Load pattern data corresponding to the current tab
         mPatternData = getEditorActivity().getPatternData(mField);
 
@@ -101,7 +119,11 @@ public class FilterEditorFragment extends Fragment {
         mModeSpinner.setOnItemSelectedListener(new OnItemSelectedListenerAdapter() {
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
-                mPatternData.setMode(mModeAdapter.getItem(position));
+                SmsFilterMode mode = mModeAdapter.getItem(position);
+                mPatternData.setMode(mode);
+                if (!isNormalizationSupported(mode, mPatternData.getNormalization())) {
+                    mNormalizationSpinner.setSelection(mNormalizationAdapter.getPosition(SmsFilterNormalization.NFKC_CASEFOLD));
+                }
             }
         });
 
@@ -112,17 +134,33 @@ public class FilterEditorFragment extends Fragment {
                 mPatternData.setCaseSensitive(mCaseAdapter.getItem(position).toBoolean());
             }
         });
+
+        mNormalizationSpinner.setSelection(mNormalizationAdapter.getPosition(mPatternData.getNormalization()));
+        mNormalizationSpinner.setOnItemSelectedListener(new OnItemSelectedListenerAdapter() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                mPatternData.setNormalization(mNormalizationAdapter.getItem(position));
+            }
+        });
+    }
+
+    /* package */ static boolean isNormalizationSupported(SmsFilterMode mode, SmsFilterNormalization normalization) {
+        // Skeletons turn digits into letters, which regular
+        // expressions (unlike the other modes) can't account for
+        return mode != SmsFilterMode.REGEX || normalization != SmsFilterNormalization.SKELETON;
     }
 
     private Map<SmsFilterMode, String> getModeMap() {
         Resources resources = getResources();
-        HashMap<SmsFilterMode, String> modeMap = MapUtils.hashMapForSize(6);
+        HashMap<SmsFilterMode, String> modeMap = MapUtils.hashMapForSize(8);
         modeMap.put(SmsFilterMode.REGEX, resources.getString(R.string.filter_mode_regex));
         modeMap.put(SmsFilterMode.WILDCARD, resources.getString(R.string.filter_mode_wildcard));
         modeMap.put(SmsFilterMode.CONTAINS, resources.getString(R.string.filter_mode_contains));
         modeMap.put(SmsFilterMode.PREFIX, resources.getString(R.string.filter_mode_prefix));
         modeMap.put(SmsFilterMode.SUFFIX, resources.getString(R.string.filter_mode_suffix));
         modeMap.put(SmsFilterMode.EQUALS, resources.getString(R.string.filter_mode_equals));
+        modeMap.put(SmsFilterMode.KEYWORD, resources.getString(R.string.filter_mode_keyword));
+        modeMap.put(SmsFilterMode.SIMILAR, resources.getString(R.string.filter_mode_similar));
         return modeMap;
     }
 
@@ -133,4 +171,14 @@ public class FilterEditorFragment extends Fragment {
         caseMap.put(CaseSensitivity.SENSITIVE, resources.getString(R.string.filter_case_sensitive));
         return caseMap;
     }
+
+    private Map<SmsFilterNormalization, String> getNormalizationMap() {
+        Resources resources = getResources();
+        HashMap<SmsFilterNormalization, String> normalizationMap = MapUtils.hashMapForSize(4);
+        normalizationMap.put(SmsFilterNormalization.NFC, resources.getString(R.string.filter_normalization_nfc));
+        normalizationMap.put(SmsFilterNormalization.NFKC, resources.getString(R.string.filter_normalization_nfkc));
+        normalizationMap.put(SmsFilterNormalization.NFKC_CASEFOLD, resources.getString(R.string.filter_normalization_nfkc_casefold));
+        normalizationMap.put(SmsFilterNormalization.SKELETON, resources.getString(R.string.filter_normalization_skeleton));
+        return normalizationMap;
+    }
 }
@@ -2,6 +2,7 @@ package com.crossbowffs.nekosms.app;
 
 import android.database.Cursor;
 import android.support.v7.widget.RecyclerView;
+import android.text.format.DateUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -17,6 +18,7 @@ import com.crossbowffs.nekosms.widget.RecyclerCursorAdapter;
         public final TextView mSenderPatternTextView;
         public final TextView mBodyInfoTextView;
         public final TextView mBodyPatternTextView;
+        public final TextView mStatsTextView;
         public SmsFilterData mFilterData;
 
         public UserFiltersItemHolder(View itemView) {
@@ -25,6 +27,7 @@ import com.crossbowffs.nekosms.widget.RecyclerCursorAdapter;
             mSenderPatternTextView = (TextView)itemView.findViewById(R.id.filter_rule_sender_pattern_textview);
             mBodyInfoTextView = (TextView)itemView.findViewById(R.id.filter_rule_body_info_textview);
             mBodyPatternTextView = (TextView)itemView.findViewById(R.id.filter_rule_body_pattern_textview);
+            mStatsTextView = (TextView)itemView.findViewById(R.id.filter_rule_stats_textview);
         }
     }
 
@@ -55,6 +58,7 @@ import com.crossbowffs.nekosms.widget.RecyclerCursorAdapter;
         SmsFilterPatternData bodyPattern = filterData.getBodyPattern();
         bindTextViews(senderPattern, holder.mSenderInfoTextView, holder.mSenderPatternTextView);
         bindTextViews(bodyPattern, holder.mBodyInfoTextView, holder.mBodyPatternTextView);
+        holder.mStatsTextView.setText(buildFilterStatsString(filterData));
         holder.itemView.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -77,6 +81,20 @@ import com.crossbowffs.nekosms.widget.RecyclerCursorAdapter;
         }
     }
 
+    private String buildFilterStatsString(SmsFilterData filterData) {
+        String statsString;
+        if (filterData.getHitCount() == 0) {
+            statsString = mFragment.getString(R.string.filter_stats_never_hit);
+        } else {
+            CharSequence lastHitString = DateUtils.getRelativeTimeSpanString(filterData.getLastHitTime());
+            statsString = mFragment.getString(R.string.format_filter_stats, filterData.getHitCount(), lastHitString);
+        }
+        if (filterData.getSubId() != SmsFilterData.ALL_SUBSCRIPTIONS) {
+            statsString = mFragment.getString(R.string.format_filter_stats_scoped, statsString, filterData.getSubId());
+        }
+        return statsString;
+    }
+
     private String buildFilterInfoString(int lineId, SmsFilterPatternData patternData) {
         String fieldString = mFragment.getString(getFilterFieldStringId(patternData.getField()));
         String modeString = mFragment.getString(getFilterModeStringId(patternData.getMode()));
@@ -84,7 +102,11 @@ import com.crossbowffs.nekosms.widget.RecyclerCursorAdapter;
         if (patternData.isCaseSensitive()) {
             caseSensitiveString = mFragment.getString(R.string.filter_info_case_sensitive);
         }
-        return mFragment.getString(lineId, fieldString, modeString, caseSensitiveString);
+        String normalizationString = "";
+        if (patternData.getNormalization() != SmsFilterNormalization.NFC) {
+            normalizationString = mFragment.getString(getFilterNormalizationInfoStringId(patternData.getNormalization()));
+        }
+        return mFragment.getString(lineId, fieldString, modeString, caseSensitiveString, normalizationString);
     }
 
     private int getFilterFieldStringId(SmsFilterField field) {
@@ -112,6 +134,23 @@ import com.crossbowffs.nekosms.widget.RecyclerCursorAdapter;
             return R.string.filter_info_mode_suffix;
         case EQUALS:
             return R.string.filter_info_mode_equals;
+        case KEYWORD:
+            return R.string.filter_info_mode_keyword;
+        case SIMILAR:
+            return R.string.filter_info_mode_similar;
+        default:
+            return 0;
+        }
+    }
+
+    private int getFilterNormalizationInfoStringId(SmsFilterNormalization normalization) {
+        switch (normalization) {
+        case NFKC:
+            return R.string.filter_info_normalization_nfkc;
+        case NFKC_CASEFOLD:
+            return R.string.filter_info_normalization_nfkc_casefold;
+        case SKELETON:
+            return R.string.filter_info_normalization_skeleton;
         default:
             return 0;
         }
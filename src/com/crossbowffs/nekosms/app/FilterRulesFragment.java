@@ -3,9 +3,11 @@ package com.crossbowffs.nekosms.app;
 import android.Manifest;
 import android.app.LoaderManager;
 import android.content.*;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.annotation.Nullable;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.widget.LinearLayoutManager;
@@ -18,6 +20,7 @@ import com.crossbowffs.nekosms.R;
 import com.crossbowffs.nekosms.backup.BackupLoader;
 import com.crossbowffs.nekosms.backup.ExportResult;
 import com.crossbowffs.nekosms.backup.ImportResult;
+import com.crossbowffs.nekosms.consts.PreferenceConsts;
 import com.crossbowffs.nekosms.data.SmsFilterAction;
 import com.crossbowffs.nekosms.data.SmsFilterData;
 import com.crossbowffs.nekosms.loader.FilterRuleLoader;
@@ -37,17 +40,27 @@ public class FilterRulesFragment extends MainFragment implements LoaderManager.L
     public static final String EXTRA_ACTION = "action";
     public static final String ARG_IMPORT_URI = "import_uri";
 
+    private static final String[] SORT_ORDERS = {
+        null,
+        DatabaseContract.FilterRules.HIT_COUNT + " DESC",
+        DatabaseContract.FilterRules.HIT_COUNT + " ASC",
+        DatabaseContract.FilterRules.LAST_HIT_TIME + " DESC",
+    };
+
     private ListRecyclerView mRecyclerView;
     private TextView mEmptyView;
     private FilterRulesAdapter mAdapter;
     private SmsFilterAction mAction;
     private Uri mPendingImportUri;
+    private SharedPreferences mInternalPrefs;
+    private ContentObserver mStatsObserver;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setHasOptionsMenu(true);
         mAction = SmsFilterAction.parse(getArguments().getString(EXTRA_ACTION));
+        mInternalPrefs = getContext().getSharedPreferences(PreferenceConsts.FILE_INTERNAL, Context.MODE_PRIVATE);
     }
 
     @Override
@@ -72,6 +85,21 @@ public class FilterRulesFragment extends MainFragment implements LoaderManager.L
         mRecyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
         registerForContextMenu(mRecyclerView);
 
+        // Hit statistics are written without notifying the rule URI
+        // (so the Xposed module doesn't reload its filters), so we
+        // need to listen for them separately.
+        mStatsObserver = new ContentObserver(new Handler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                Loader<Cursor> loader = getLoaderManager().getLoader(0);
+                if (loader != null) {
+                    loader.onContentChanged();
+                }
+            }
+        };
+        getContext().getContentResolver().registerContentObserver(
+            DatabaseContract.FilterRules.STATS_CONTENT_URI, false, mStatsObserver);
+
         // Display create FAB
         enableFab(R.drawable.ic_create_white_24dp, new View.OnClickListener() {
             @Override
@@ -95,6 +123,15 @@ public class FilterRulesFragment extends MainFragment implements LoaderManager.L
         onNewArguments(getArguments());
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        if (mStatsObserver != null) {
+            getContext().getContentResolver().unregisterContentObserver(mStatsObserver);
+            mStatsObserver = null;
+        }
+    }
+
     @Override
     public void onNewArguments(Bundle args) {
         if (args == null) {
@@ -151,6 +188,9 @@ public class FilterRulesFragment extends MainFragment implements LoaderManager.L
         case R.id.menu_item_import_export_filters:
             showImportExportDialog();
             return true;
+        case R.id.menu_item_sort_filters:
+            showSortOrderDialog();
+            return true;
         default:
             return super.onOptionsItemSelected(item);
         }
@@ -163,7 +203,7 @@ public class FilterRulesFragment extends MainFragment implements LoaderManager.L
             DatabaseContract.FilterRules.ALL,
             DatabaseContract.FilterRules.ACTION + "=?",
             new String[] {mAction.name()},
-            null);
+            SORT_ORDERS[getSortOrderIndex()]);
     }
 
     @Override
@@ -220,6 +260,35 @@ public class FilterRulesFragment extends MainFragment implements LoaderManager.L
             .show();
     }
 
+    private int getSortOrderIndex() {
+        int index = mInternalPrefs.getInt(PreferenceConsts.KEY_FILTER_SORT_ORDER, 0);
+        if (index < 0 || index >= SORT_ORDERS.length) {
+            return 0;
+        }
+        return index;
+    }
+
+    private void showSortOrderDialog() {
+        CharSequence[] items = {
+            getString(R.string.sort_filters_default),
+            getString(R.string.sort_filters_most_hits),
+            getString(R.string.sort_filters_least_hits),
+            getString(R.string.sort_filters_last_hit),
+        };
+        new AlertDialog.Builder(getContext())
+            .setTitle(R.string.sort_filters)
+            .setSingleChoiceItems(items, getSortOrderIndex(), new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    dialog.dismiss();
+                    mInternalPrefs.edit().putInt(PreferenceConsts.KEY_FILTER_SORT_ORDER, which).apply();
+                    getLoaderManager().restartLoader(0, null, FilterRulesFragment.this);
+                }
+            })
+            .setNegativeButton(R.string.cancel, null)
+            .show();
+    }
+
     private void showImportFileSelectionDialog() {
         final File[] files = BackupLoader.enumerateBackupFiles();
         if (files == null || files.length == 0) {
@@ -1,18 +1,75 @@
 package com.crossbowffs.nekosms.app;
 
+import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.Preference;
 import android.preference.PreferenceFragment;
 import android.provider.Settings;
+import android.support.v7.app.AlertDialog;
+import android.text.format.DateFormat;
+import android.text.format.Formatter;
 import com.crossbowffs.nekosms.BuildConfig;
 import com.crossbowffs.nekosms.R;
 import com.crossbowffs.nekosms.consts.PreferenceConsts;
+import com.crossbowffs.nekosms.data.SmsEvent;
+import com.crossbowffs.nekosms.data.SmsFilterData;
+import com.crossbowffs.nekosms.data.SmsHookStage;
+import com.crossbowffs.nekosms.data.SmsFilterPatternData;
+import com.crossbowffs.nekosms.loader.DiagnosticsLoader;
+import com.crossbowffs.nekosms.loader.FilterRuleLoader;
 import com.crossbowffs.nekosms.utils.XposedUtils;
+import com.crossbowffs.nekosms.widget.CursorWrapper;
+import com.crossbowffs.nekosms.widget.DialogAsyncTask;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import static com.crossbowffs.nekosms.provider.DatabaseContract.Diagnostics;
 
 public class SettingsFragment extends PreferenceFragment {
     private static final String NEKOSMS_PACKAGE = BuildConfig.APPLICATION_ID;
+    private static final int MAX_FILTER_TIMINGS = 10;
+    private static final int MAX_EVENTS = 100;
+
+    private static class FilterTiming {
+        public long mId;
+        public long mSampleCount;
+        public long mP50Nanos;
+        public long mP99Nanos;
+        public SmsFilterData mFilterData;
+    }
+
+    // Diagnostics are fetched from the provider (and the rule names from
+    // the database), so they are loaded in the background and the dialog
+    // is only shown once they are ready
+    private abstract class DiagnosticsDialogTask<T> extends DialogAsyncTask<Void, Void, T> {
+        private final int mTitleId;
+
+        public DiagnosticsDialogTask(int titleId) {
+            super(getActivity(), R.string.progress_loading_diagnostics);
+            mTitleId = titleId;
+        }
+
+        protected abstract String buildMessage(T result);
+
+        @Override
+        protected void onPostExecute(T result) {
+            super.onPostExecute(result);
+            if (!isAdded()) {
+                return;
+            }
+            new AlertDialog.Builder(getActivity())
+                .setTitle(mTitleId)
+                .setMessage(buildMessage(result))
+                .setPositiveButton(R.string.close, null)
+                .show();
+        }
+    }
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -42,6 +99,49 @@ public class SettingsFragment extends PreferenceFragment {
         } else {
             addPreferencesFromResource(R.xml.settings_notifications);
         }
+
+        // Diagnostics settings
+        addPreferencesFromResource(R.xml.settings_diagnostics);
+        Preference timingsPreference = findPreference(PreferenceConsts.KEY_VIEW_FILTER_TIMINGS);
+        timingsPreference.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                showFilterTimingsDialog();
+                return true;
+            }
+        });
+        Preference verdictCachePreference = findPreference(PreferenceConsts.KEY_VIEW_VERDICT_CACHE);
+        verdictCachePreference.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                showDiagnosticsDialog(Diagnostics.KEY_VERDICT_CACHE, R.string.verdict_cache);
+                return true;
+            }
+        });
+        Preference stageTimingsPreference = findPreference(PreferenceConsts.KEY_VIEW_STAGE_TIMINGS);
+        stageTimingsPreference.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                showDiagnosticsDialog(Diagnostics.KEY_STAGE_TIMINGS, R.string.stage_timings);
+                return true;
+            }
+        });
+        Preference eventLogPreference = findPreference(PreferenceConsts.KEY_VIEW_EVENT_LOG);
+        eventLogPreference.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                showDiagnosticsDialog(Diagnostics.KEY_EVENT_LOG, R.string.event_log);
+                return true;
+            }
+        });
+        Preference filterMemoryPreference = findPreference(PreferenceConsts.KEY_VIEW_FILTER_MEMORY);
+        filterMemoryPreference.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                showDiagnosticsDialog(Diagnostics.KEY_FILTER_MEMORY, R.string.filter_memory);
+                return true;
+            }
+        });
     }
 
     @Override
@@ -51,4 +151,358 @@ public class SettingsFragment extends PreferenceFragment {
         activity.disableFab();
         activity.setTitle(R.string.settings);
     }
+
+    private static List<FilterTiming> loadFilterTimings(Context context) {
+        ArrayList<FilterTiming> timings = new ArrayList<>();
+        Bundle data = DiagnosticsLoader.get(context, Diagnostics.KEY_FILTER_TIMINGS);
+        if (data == null) {
+            return timings;
+        }
+
+        long[] ids = data.getLongArray(Diagnostics.EXTRA_IDS);
+        long[] sampleCounts = data.getLongArray(Diagnostics.EXTRA_SAMPLE_COUNTS);
+        long[] p50Nanos = data.getLongArray(Diagnostics.EXTRA_P50_NANOS);
+        long[] p99Nanos = data.getLongArray(Diagnostics.EXTRA_P99_NANOS);
+        if (ids == null || sampleCounts == null || p50Nanos == null || p99Nanos == null) {
+            return timings;
+        }
+
+        for (int i = 0; i < ids.length; ++i) {
+            FilterTiming timing = new FilterTiming();
+            timing.mId = ids[i];
+            timing.mSampleCount = sampleCounts[i];
+            timing.mP50Nanos = p50Nanos[i];
+            timing.mP99Nanos = p99Nanos[i];
+            timings.add(timing);
+        }
+
+        // Most expensive rules first; ties are broken by the median
+        // so that a single slow outlier doesn't dominate the list.
+        Collections.sort(timings, new Comparator<FilterTiming>() {
+            @Override
+            public int compare(FilterTiming a, FilterTiming b) {
+                if (a.mP99Nanos != b.mP99Nanos) {
+                    return a.mP99Nanos < b.mP99Nanos ? 1 : -1;
+                }
+                if (a.mP50Nanos != b.mP50Nanos) {
+                    return a.mP50Nanos < b.mP50Nanos ? 1 : -1;
+                }
+                return 0;
+            }
+        });
+
+        // Only the rules that are shown need their names, which
+        // are all looked up with a single query
+        List<FilterTiming> shownTimings = timings.subList(0, Math.min(timings.size(), MAX_FILTER_TIMINGS));
+        long[] shownIds = new long[shownTimings.size()];
+        for (int i = 0; i < shownIds.length; ++i) {
+            shownIds[i] = shownTimings.get(i).mId;
+        }
+        if (shownIds.length > 0) {
+            try (CursorWrapper<SmsFilterData> filterCursor = FilterRuleLoader.get().queryAll(context, shownIds)) {
+                while (filterCursor.moveToNext()) {
+                    SmsFilterData filterData = filterCursor.get();
+                    for (FilterTiming timing : shownTimings) {
+                        if (timing.mId == filterData.getId()) {
+                            timing.mFilterData = filterData;
+                        }
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(shownTimings);
+    }
+
+    private String buildDurationString(long nanos) {
+        if (nanos < 1000 * 1000) {
+            return getString(R.string.format_duration_us, nanos / 1000.0);
+        } else {
+            return getString(R.string.format_duration_ms, nanos / (1000.0 * 1000.0));
+        }
+    }
+
+    private String buildFilterNameString(SmsFilterData filterData) {
+        if (filterData == null) {
+            return getString(R.string.filter_timings_deleted_rule);
+        }
+
+        SmsFilterPatternData senderPattern = filterData.getSenderPattern();
+        SmsFilterPatternData bodyPattern = filterData.getBodyPattern();
+        if (senderPattern.hasData() && bodyPattern.hasData()) {
+            return getString(R.string.format_filter_timings_name, senderPattern.getPattern(), bodyPattern.getPattern());
+        } else if (senderPattern.hasData()) {
+            return senderPattern.getPattern();
+        } else {
+            return bodyPattern.getPattern();
+        }
+    }
+
+    private String buildFilterTimingsString(List<FilterTiming> timings) {
+        if (timings.isEmpty()) {
+            return getString(R.string.filter_timings_empty);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < timings.size(); ++i) {
+            FilterTiming timing = timings.get(i);
+            if (i > 0) {
+                sb.append("\n\n");
+            }
+            sb.append(getString(R.string.format_filter_timings_item,
+                buildFilterNameString(timing.mFilterData),
+                buildDurationString(timing.mP50Nanos),
+                buildDurationString(timing.mP99Nanos),
+                timing.mSampleCount));
+        }
+        return sb.toString();
+    }
+
+    private void showFilterTimingsDialog() {
+        final Context context = getActivity();
+        new DiagnosticsDialogTask<List<FilterTiming>>(R.string.filter_timings) {
+            @Override
+            protected List<FilterTiming> doInBackground(Void... params) {
+                return loadFilterTimings(context);
+            }
+
+            @Override
+            protected String buildMessage(List<FilterTiming> timings) {
+                return buildFilterTimingsString(timings);
+            }
+        }.execute();
+    }
+
+    private void showDiagnosticsDialog(final String key, int titleId) {
+        final Context context = getActivity();
+        new DiagnosticsDialogTask<Bundle>(titleId) {
+            @Override
+            protected Bundle doInBackground(Void... params) {
+                return DiagnosticsLoader.get(context, key);
+            }
+
+            @Override
+            protected String buildMessage(Bundle data) {
+                switch (key) {
+                case Diagnostics.KEY_VERDICT_CACHE:
+                    return buildVerdictCacheString(data);
+                case Diagnostics.KEY_STAGE_TIMINGS:
+                    return buildStageTimingsString(data);
+                case Diagnostics.KEY_FILTER_MEMORY:
+                    return buildFilterMemoryString(data);
+                case Diagnostics.KEY_EVENT_LOG:
+                    return buildEventLogString(data);
+                default:
+                    throw new AssertionError("Unknown diagnostics key: " + key);
+                }
+            }
+        }.execute();
+    }
+
+    private String buildVerdictCacheString(Bundle data) {
+        if (data == null) {
+            return getString(R.string.verdict_cache_empty);
+        }
+
+        long hits = data.getLong(Diagnostics.EXTRA_CACHE_HITS);
+        long misses = data.getLong(Diagnostics.EXTRA_CACHE_MISSES);
+        long uncacheable = data.getLong(Diagnostics.EXTRA_CACHE_UNCACHEABLE);
+        long lookups = hits + misses;
+        if (lookups == 0) {
+            return getString(R.string.verdict_cache_empty);
+        }
+        return getString(R.string.format_verdict_cache_stats, hits, 100.0 * hits / lookups, misses, uncacheable);
+    }
+
+    private int getStageName(SmsHookStage stage) {
+        switch (stage) {
+        case PREFERENCES:
+            return R.string.stage_preferences;
+        case PARSE:
+            return R.string.stage_parse;
+        case NORMALIZE:
+            return R.string.stage_normalize;
+        case CONTACTS:
+            return R.string.stage_contacts;
+        case FILTERS:
+            return R.string.stage_filters;
+        case JOURNAL:
+            return R.string.stage_journal;
+        case DELETE:
+            return R.string.stage_delete;
+        case TOTAL:
+            return R.string.stage_total;
+        case INSERT:
+            return R.string.stage_insert;
+        case BROADCAST:
+            return R.string.stage_broadcast;
+        default:
+            throw new AssertionError("Unknown stage: " + stage);
+        }
+    }
+
+    private String buildStageTimingsString(Bundle data) {
+        if (data == null) {
+            return getString(R.string.stage_timings_empty);
+        }
+
+        String[] stages = data.getStringArray(Diagnostics.EXTRA_STAGES);
+        long[] sampleCounts = data.getLongArray(Diagnostics.EXTRA_SAMPLE_COUNTS);
+        long[] p50Nanos = data.getLongArray(Diagnostics.EXTRA_P50_NANOS);
+        long[] p95Nanos = data.getLongArray(Diagnostics.EXTRA_P95_NANOS);
+        long[] p99Nanos = data.getLongArray(Diagnostics.EXTRA_P99_NANOS);
+        long[] failOpenCounts = data.getLongArray(Diagnostics.EXTRA_FAIL_OPEN_COUNTS);
+        if (stages == null || sampleCounts == null || p50Nanos == null || p95Nanos == null || p99Nanos == null) {
+            return getString(R.string.stage_timings_empty);
+        }
+
+        // Stages are exported in pipeline order, with the background
+        // stages after the total
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < stages.length; ++i) {
+            SmsHookStage stage = SmsHookStage.parse(stages[i]);
+            if (stage == null || sampleCounts[i] == 0) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append("\n\n");
+            }
+            if (stage == SmsHookStage.INSERT) {
+                sb.append(getString(R.string.stage_timings_background)).append("\n\n");
+            }
+            sb.append(getString(R.string.format_stage_timings_item,
+                getString(getStageName(stage)),
+                buildDurationString(p50Nanos[i]),
+                buildDurationString(p95Nanos[i]),
+                buildDurationString(p99Nanos[i]),
+                sampleCounts[i]));
+            if (failOpenCounts != null && failOpenCounts[i] > 0) {
+                sb.append(getString(R.string.format_stage_timings_fail_open, failOpenCounts[i]));
+            }
+        }
+        if (sb.length() == 0) {
+            return getString(R.string.stage_timings_empty);
+        }
+        return sb.toString();
+    }
+
+    private String buildFilterMemoryString(Bundle data) {
+        if (data == null) {
+            return getString(R.string.filter_memory_empty);
+        }
+
+        long estimatedBytes = data.getLong(Diagnostics.EXTRA_ESTIMATED_BYTES);
+        long budgetBytes = data.getLong(Diagnostics.EXTRA_BUDGET_BYTES);
+        String budget;
+        if (budgetBytes > 0) {
+            budget = Formatter.formatShortFileSize(getActivity(), budgetBytes);
+        } else {
+            budget = getString(R.string.filter_memory_no_limit);
+        }
+        return getString(R.string.format_filter_memory_stats,
+            Formatter.formatShortFileSize(getActivity(), estimatedBytes),
+            budget,
+            data.getInt(Diagnostics.EXTRA_FILTER_COUNT),
+            data.getInt(Diagnostics.EXTRA_REGEX_COUNT),
+            data.getInt(Diagnostics.EXTRA_COMPILED_REGEX_COUNT),
+            data.getInt(Diagnostics.EXTRA_TRIM_COUNT));
+    }
+
+    private String getVerdictName(int verdict) {
+        switch (verdict) {
+        case SmsEvent.VERDICT_ALLOW_NO_RULES:
+            return getString(R.string.event_allow_no_rules);
+        case SmsEvent.VERDICT_ALLOW_CONTACT:
+            return getString(R.string.event_allow_contact);
+        case SmsEvent.VERDICT_ALLOW_WHITELIST:
+            return getString(R.string.event_allow_whitelist);
+        case SmsEvent.VERDICT_ALLOW_NO_MATCH:
+            return getString(R.string.event_allow_no_match);
+        case SmsEvent.VERDICT_ALLOW_LOAD_FAILED:
+            return getString(R.string.event_allow_load_failed);
+        case SmsEvent.VERDICT_BLOCK_BLACKLIST:
+            return getString(R.string.event_block_blacklist);
+        case SmsEvent.VERDICT_BLOCK_FLOOD:
+            return getString(R.string.event_block_flood);
+        case SmsEvent.VERDICT_ALLOW_FILTERS_TIMEOUT:
+            return getString(R.string.event_allow_filters_timeout);
+        case SmsEvent.VERDICT_ALLOW_CONTACTS_TIMEOUT:
+            return getString(R.string.event_allow_contacts_timeout);
+        default:
+            return null;
+        }
+    }
+
+    private String getErrorName(int error) {
+        switch (error) {
+        case SmsEvent.ERROR_FILTER_LOAD:
+            return getString(R.string.event_error_filter_load);
+        case SmsEvent.ERROR_JOURNAL_WRITE:
+            return getString(R.string.event_error_journal_write);
+        case SmsEvent.ERROR_INSERT:
+            return getString(R.string.event_error_insert);
+        case SmsEvent.ERROR_HOOK:
+            return getString(R.string.event_error_hook);
+        default:
+            return null;
+        }
+    }
+
+    private String buildEventString(SmsEvent event) {
+        switch (event.getType()) {
+        case SmsEvent.TYPE_RECEIVED:
+            return getString(R.string.format_event_received, event.getCode(), event.getValue());
+        case SmsEvent.TYPE_VERDICT:
+            String verdict = getVerdictName(event.getCode());
+            if (verdict == null || event.getValue() < 0) {
+                return verdict;
+            }
+            return getString(R.string.format_event_rule, verdict, event.getValue());
+        case SmsEvent.TYPE_STAGE:
+            // Events from a different version of the module may
+            // have stages we don't know about
+            SmsHookStage[] stages = SmsHookStage.values();
+            if (event.getCode() < 0 || event.getCode() >= stages.length) {
+                return null;
+            }
+            return getString(R.string.format_event_stage,
+                getString(getStageName(stages[event.getCode()])),
+                buildDurationString(event.getValue()));
+        case SmsEvent.TYPE_ERROR:
+            return getErrorName(event.getCode());
+        default:
+            return null;
+        }
+    }
+
+    private String buildEventLogString(Bundle data) {
+        long[] encodedEvents = (data != null) ? data.getLongArray(Diagnostics.EXTRA_EVENTS) : null;
+        if (encodedEvents == null) {
+            return getString(R.string.event_log_empty);
+        }
+
+        // Events are exported oldest first, but the most recent
+        // ones are the interesting ones
+        List<SmsEvent> events = SmsEvent.decode(encodedEvents);
+        java.text.DateFormat timeFormat = DateFormat.getTimeFormat(getActivity());
+        StringBuilder sb = new StringBuilder();
+        int count = 0;
+        for (int i = events.size() - 1; i >= 0 && count < MAX_EVENTS; --i) {
+            SmsEvent event = events.get(i);
+            String description = buildEventString(event);
+            if (description == null) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append("\n");
+            }
+            sb.append(getString(R.string.format_event_log_item,
+                timeFormat.format(new Date(event.getTime())),
+                description));
+            count++;
+        }
+        if (sb.length() == 0) {
+            return getString(R.string.event_log_empty);
+        }
+        return sb.toString();
+    }
 }
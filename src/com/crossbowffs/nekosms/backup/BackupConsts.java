@@ -4,11 +4,13 @@ package com.crossbowffs.nekosms.backup;
     public static final String KEY_VERSION = "version";
     public static final String KEY_FILTERS = "filters";
     public static final String KEY_FILTER_ACTION = "action";
+    public static final String KEY_FILTER_SUB_ID = "sub_id";
     public static final String KEY_FILTER_SENDER = "sender";
     public static final String KEY_FILTER_BODY = "body";
     public static final String KEY_FILTER_MODE = "mode";
     public static final String KEY_FILTER_PATTERN = "pattern";
     public static final String KEY_FILTER_CASE_SENSITIVE = "case_sensitive";
+    public static final String KEY_FILTER_NORMALIZATION = "normalization";
 
     private BackupConsts() { }
 }
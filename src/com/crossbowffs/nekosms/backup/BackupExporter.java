@@ -46,12 +46,16 @@ import java.io.*;
             .name(BackupConsts.KEY_FILTER_MODE).value(patternData.getMode().name().toLowerCase())
             .name(BackupConsts.KEY_FILTER_PATTERN).value(patternData.getPattern())
             .name(BackupConsts.KEY_FILTER_CASE_SENSITIVE).value(patternData.isCaseSensitive())
+            .name(BackupConsts.KEY_FILTER_NORMALIZATION).value(patternData.getNormalization().name().toLowerCase())
             .endObject();
     }
 
     private void writeFilter(SmsFilterData filterData) throws IOException {
         mJsonWriter.beginObject();
         mJsonWriter.name(BackupConsts.KEY_FILTER_ACTION).value(filterData.getAction().name().toLowerCase());
+        if (filterData.getSubId() != SmsFilterData.ALL_SUBSCRIPTIONS) {
+            mJsonWriter.name(BackupConsts.KEY_FILTER_SUB_ID).value(filterData.getSubId());
+        }
         SmsFilterPatternData senderPattern = filterData.getSenderPattern();
         if (senderPattern.hasData()) {
             mJsonWriter.name(BackupConsts.KEY_FILTER_SENDER);
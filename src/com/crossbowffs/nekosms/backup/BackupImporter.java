@@ -45,7 +45,11 @@ import java.io.*;
             delegate = new BackupImporterDelegate1(context);
         } else if (version == 2) {
             delegate = new BackupImporterDelegate2(context);
-        } else if (version == 3) {
+        } else if (version >= 3 && version <= 6) {
+            // Versions 4 to 6 only add the keyword and similar filter
+            // modes and the optional normalization and subscription
+            // keys, which older versions of the app would fail to
+            // parse or silently drop
             delegate = new BackupImporterDelegate3(context);
         } else {
             throw new BackupVersionException("Unknown backup version: " + version);
@@ -50,14 +50,21 @@ import java.util.List;
         String modeString = patternJson.getString(BackupConsts.KEY_FILTER_MODE);
         String patternString = patternJson.getString(BackupConsts.KEY_FILTER_PATTERN);
         boolean caseSensitive = patternJson.getBoolean(BackupConsts.KEY_FILTER_CASE_SENSITIVE);
+        // Only present in version 4+ backups
+        String normalizationString = patternJson.optString(BackupConsts.KEY_FILTER_NORMALIZATION, null);
         SmsFilterMode mode;
+        SmsFilterNormalization normalization;
         try {
             mode = SmsFilterMode.parse(modeString);
+            normalization = SmsFilterNormalization.parse(normalizationString);
         } catch (InvalidFilterException e) {
             throw new InvalidBackupException(e);
         }
         pattern.setMode(mode);
         pattern.setPattern(patternString);
         pattern.setCaseSensitive(caseSensitive);
+        if (normalization != null) {
+            pattern.setNormalization(normalization);
+        }
     }
 }
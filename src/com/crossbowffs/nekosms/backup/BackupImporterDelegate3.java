@@ -23,6 +23,9 @@ import org.json.JSONObject;
             throw new InvalidBackupException(e);
         }
         data.setAction(action);
+        // Only present in version 6+ backups, for rules that
+        // are limited to one SIM card
+        data.setSubId(filterJson.optInt(BackupConsts.KEY_FILTER_SUB_ID, SmsFilterData.ALL_SUBSCRIPTIONS));
         return data;
     }
 }
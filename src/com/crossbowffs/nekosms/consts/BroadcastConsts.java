@@ -10,6 +10,7 @@ public final class BroadcastConsts {
     public static final String ACTION_RESTORE_SMS = NEKOSMS_PACKAGE + ".action.RESTORE_BLOCKED_SMS";
     public static final String ACTION_DISMISS_NOTIFICATION = NEKOSMS_PACKAGE + ".action.DISMISS_NOTIFICATION";
     public static final String EXTRA_MESSAGE = "message";
+    public static final String EXTRA_MESSAGES = "messages";
 
     private BroadcastConsts() { }
 }
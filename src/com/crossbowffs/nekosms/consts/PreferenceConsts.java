@@ -16,6 +16,12 @@ public final class PreferenceConsts {
     public static final boolean KEY_NOTIFICATIONS_ENABLE_DEFAULT = false;
     public static final String KEY_VERBOSE_LOGGING = "pref_verbose_logging";
     public static final boolean KEY_VERBOSE_LOGGING_DEFAULT = false;
+    public static final String KEY_FLOOD_THRESHOLD = "pref_flood_threshold";
+    public static final String KEY_FLOOD_THRESHOLD_DEFAULT = "0";
+    public static final String KEY_LATENCY_BUDGET = "pref_latency_budget";
+    public static final String KEY_LATENCY_BUDGET_DEFAULT = "2000";
+    public static final String KEY_FILTER_MEMORY_BUDGET = "pref_filter_memory_budget";
+    public static final String KEY_FILTER_MEMORY_BUDGET_DEFAULT = "1024";
     public static final String KEY_NOTIFICATIONS_RINGTONE = "pref_notifications_ringtone";
     public static final String KEY_NOTIFICATIONS_RINGTONE_DEFAULT = "content://settings/system/notification_sound";
     public static final String KEY_NOTIFICATIONS_VIBRATE = "pref_notifications_vibrate";
@@ -25,10 +31,18 @@ public final class PreferenceConsts {
     public static final String KEY_NOTIFICATIONS_PRIORITY = "pref_notifications_priority";
     public static final String KEY_NOTIFICATIONS_PRIORITY_DEFAULT = "0";
     public static final String KEY_NOTIFICATIONS_OPEN_SETTINGS = "pref_notifications_open_settings";
+    public static final String KEY_PROFILE_FILTERS = "pref_profile_filters";
+    public static final boolean KEY_PROFILE_FILTERS_DEFAULT = false;
+    public static final String KEY_VIEW_FILTER_TIMINGS = "pref_view_filter_timings";
+    public static final String KEY_VIEW_VERDICT_CACHE = "pref_view_verdict_cache";
+    public static final String KEY_VIEW_STAGE_TIMINGS = "pref_view_stage_timings";
+    public static final String KEY_VIEW_EVENT_LOG = "pref_view_event_log";
+    public static final String KEY_VIEW_FILTER_MEMORY = "pref_view_filter_memory";
 
     public static final String KEY_APP_VERSION = "pref_app_version";
     public static final String KEY_SELECTED_SECTION = "pref_selected_section";
     public static final String KEY_KNOWN_TASK_KILLERS = "pref_known_task_killers";
+    public static final String KEY_FILTER_SORT_ORDER = "pref_filter_sort_order";
 
     private PreferenceConsts() { }
 }
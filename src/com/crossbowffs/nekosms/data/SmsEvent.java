@@ -0,0 +1,85 @@
+package com.crossbowffs.nekosms.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Event recorded by the Xposed module while processing messages.
+ * Events are exported to the app as a flat long array, with
+ * {@link #ENCODED_SIZE} values per event, so that recording one
+ * never needs to format or allocate anything.
+ */
+public class SmsEvent {
+    public static final int ENCODED_SIZE = 3;
+
+    public static final int TYPE_RECEIVED = 1;
+    public static final int TYPE_VERDICT = 2;
+    public static final int TYPE_STAGE = 3;
+    public static final int TYPE_ERROR = 4;
+
+    public static final int VERDICT_ALLOW_NO_RULES = 1;
+    public static final int VERDICT_ALLOW_CONTACT = 2;
+    public static final int VERDICT_ALLOW_WHITELIST = 3;
+    public static final int VERDICT_ALLOW_NO_MATCH = 4;
+    public static final int VERDICT_ALLOW_LOAD_FAILED = 5;
+    public static final int VERDICT_BLOCK_BLACKLIST = 6;
+    public static final int VERDICT_BLOCK_FLOOD = 7;
+    public static final int VERDICT_ALLOW_FILTERS_TIMEOUT = 8;
+    public static final int VERDICT_ALLOW_CONTACTS_TIMEOUT = 9;
+
+    public static final int ERROR_FILTER_LOAD = 1;
+    public static final int ERROR_JOURNAL_WRITE = 2;
+    public static final int ERROR_INSERT = 3;
+    public static final int ERROR_HOOK = 4;
+
+    private final long mTime;
+    private final int mType;
+    private final int mCode;
+    private final long mValue;
+
+    public SmsEvent(long time, int type, int code, long value) {
+        mTime = time;
+        mType = type;
+        mCode = code;
+        mValue = value;
+    }
+
+    public static long encodeTypeAndCode(int type, int code) {
+        return ((long)type << 32) | (code & 0xffffffffL);
+    }
+
+    public static List<SmsEvent> decode(long[] data) {
+        ArrayList<SmsEvent> events = new ArrayList<>(data.length / ENCODED_SIZE);
+        for (int i = 0; i + ENCODED_SIZE <= data.length; i += ENCODED_SIZE) {
+            long typeAndCode = data[i + 1];
+            events.add(new SmsEvent(data[i], (int)(typeAndCode >>> 32), (int)typeAndCode, data[i + 2]));
+        }
+        return events;
+    }
+
+    public long getTime() {
+        return mTime;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * For received messages, the subscription ID; for verdicts, one
+     * of the VERDICT_* constants; for stage timings, the ordinal of
+     * the {@link SmsHookStage}; for errors, one of the ERROR_* constants.
+     */
+    public int getCode() {
+        return mCode;
+    }
+
+    /**
+     * For received messages, the number of message parts; for verdicts,
+     * the ID of the matched rule (or -1); for stage timings, the time
+     * taken in nanoseconds; unused for errors.
+     */
+    public long getValue() {
+        return mValue;
+    }
+}
@@ -1,16 +1,25 @@
 package com.crossbowffs.nekosms.data;
 
 public class SmsFilterData {
+    // Subscription ID of rules that apply to every SIM card
+    public static final int ALL_SUBSCRIPTIONS = -1;
+
     private long mId = -1;
     private SmsFilterAction mAction;
+    private int mSubId = ALL_SUBSCRIPTIONS;
     private final SmsFilterPatternData mSenderPattern = new SmsFilterPatternData(SmsFilterField.SENDER);
     private final SmsFilterPatternData mBodyPattern = new SmsFilterPatternData(SmsFilterField.BODY);
+    private int mHitCount;
+    private long mLastHitTime;
 
     public void reset() {
         mId = -1;
         mAction = null;
+        mSubId = ALL_SUBSCRIPTIONS;
         mSenderPattern.reset();
         mBodyPattern.reset();
+        mHitCount = 0;
+        mLastHitTime = 0;
     }
 
     public SmsFilterData setId(long id) {
@@ -31,6 +40,33 @@ public class SmsFilterData {
         return mAction;
     }
 
+    public SmsFilterData setSubId(int subId) {
+        mSubId = subId;
+        return this;
+    }
+
+    public int getSubId() {
+        return mSubId;
+    }
+
+    public SmsFilterData setHitCount(int hitCount) {
+        mHitCount = hitCount;
+        return this;
+    }
+
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    public SmsFilterData setLastHitTime(long lastHitTime) {
+        mLastHitTime = lastHitTime;
+        return this;
+    }
+
+    public long getLastHitTime() {
+        return mLastHitTime;
+    }
+
     public SmsFilterPatternData getSenderPattern() {
         return mSenderPattern;
     }
@@ -55,8 +91,11 @@ public class SmsFilterData {
         return "SmsFilterData{" +
             "id=" + mId +
             ", action=" + mAction +
+            ", subId=" + mSubId +
             ", senderPattern=" + mSenderPattern +
             ", bodyPattern=" + mBodyPattern +
+            ", hitCount=" + mHitCount +
+            ", lastHitTime=" + mLastHitTime +
             "}";
     }
 }
@@ -6,7 +6,9 @@ public enum SmsFilterMode {
     CONTAINS,
     PREFIX,
     SUFFIX,
-    EQUALS;
+    EQUALS,
+    KEYWORD,
+    SIMILAR;
 
     public static SmsFilterMode parse(String modeString) {
         if (modeString == null) {
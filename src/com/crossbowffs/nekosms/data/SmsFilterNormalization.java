@@ -0,0 +1,20 @@
+package com.crossbowffs.nekosms.data;
+
+public enum SmsFilterNormalization {
+    NFC,
+    NFKC,
+    NFKC_CASEFOLD,
+    SKELETON;
+
+    public static SmsFilterNormalization parse(String normalizationString) {
+        if (normalizationString == null) {
+            return null;
+        }
+
+        try {
+            return SmsFilterNormalization.valueOf(normalizationString.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidFilterException("Invalid filter normalization value: " + normalizationString, e);
+        }
+    }
+}
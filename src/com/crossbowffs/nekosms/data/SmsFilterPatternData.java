@@ -1,26 +1,31 @@
 package com.crossbowffs.nekosms.data;
 
-import android.text.TextUtils;
 import com.crossbowffs.nekosms.utils.StringUtils;
 
 public class SmsFilterPatternData {
+    // Upper bound for the pattern of SIMILAR rules, which is the
+    // number of bits the message fingerprints may differ by
+    public static final int MAX_SIMILAR_DISTANCE = 10;
+
     private final SmsFilterField mField;
     private SmsFilterMode mMode;
     private String mPattern;
     private boolean mCaseSensitive;
+    private SmsFilterNormalization mNormalization = SmsFilterNormalization.NFC;
 
     public SmsFilterPatternData(SmsFilterField field) {
         mField = field;
     }
 
     public boolean hasData() {
-        return !TextUtils.isEmpty(mPattern);
+        return mPattern != null && !mPattern.isEmpty();
     }
 
     public void reset() {
         mMode = null;
         mPattern = null;
         mCaseSensitive = false;
+        mNormalization = SmsFilterNormalization.NFC;
     }
 
     public SmsFilterPatternData setMode(SmsFilterMode mode) {
@@ -38,6 +43,11 @@ public class SmsFilterPatternData {
         return this;
     }
 
+    public SmsFilterPatternData setNormalization(SmsFilterNormalization normalization) {
+        mNormalization = normalization;
+        return this;
+    }
+
     public SmsFilterField getField() {
         return mField;
     }
@@ -54,6 +64,10 @@ public class SmsFilterPatternData {
         return mCaseSensitive;
     }
 
+    public SmsFilterNormalization getNormalization() {
+        return mNormalization;
+    }
+
     @Override
     public String toString() {
         return "SmsFilterPatternData{" +
@@ -61,6 +75,7 @@ public class SmsFilterPatternData {
             ", mode=" + mMode +
             ", pattern=" + StringUtils.escape(mPattern) +
             ", caseSensitive=" + mCaseSensitive +
+            ", normalization=" + mNormalization +
             "}";
     }
 }
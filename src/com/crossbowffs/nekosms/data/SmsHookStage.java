@@ -0,0 +1,33 @@
+package com.crossbowffs.nekosms.data;
+
+/**
+ * Steps of processing a received message in the Xposed module,
+ * which are timed separately. Insert and broadcast happen on a
+ * background thread after the message has been handled, and are
+ * not included in the total.
+ */
+public enum SmsHookStage {
+    PREFERENCES,
+    PARSE,
+    NORMALIZE,
+    CONTACTS,
+    FILTERS,
+    JOURNAL,
+    DELETE,
+    TOTAL,
+    INSERT,
+    BROADCAST;
+
+    public static SmsHookStage parse(String stageString) {
+        if (stageString == null) {
+            return null;
+        }
+
+        try {
+            return SmsHookStage.valueOf(stageString);
+        } catch (IllegalArgumentException e) {
+            // Might be from a newer version of the module
+            return null;
+        }
+    }
+}
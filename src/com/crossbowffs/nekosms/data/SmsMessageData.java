@@ -9,7 +9,7 @@ import java.text.Normalizer;
 public class SmsMessageData {
     private long mId = -1;
     private String mSender;
-    private String mBody;
+    private CharSequence mBody;
     private long mTimeSent;
     private long mTimeReceived;
     private boolean mRead;
@@ -17,16 +17,26 @@ public class SmsMessageData {
     private int mSubId;
 
     public static SmsMessageData fromIntent(Intent intent) {
-        SmsMessage[] messageParts = SmsMessageUtils.fromIntent(intent);
+        return fromMessageParts(SmsMessageUtils.fromIntent(intent), true);
+    }
+
+    /**
+     * Creates a message from the PDUs of a received SMS. If the body
+     * is not needed right away, it can be skipped to avoid assembling
+     * and normalizing it, and filled in later with
+     * {@link #setBodyFromParts(SmsMessage[])}.
+     */
+    public static SmsMessageData fromMessageParts(SmsMessage[] messageParts, boolean includeBody) {
         String sender = messageParts[0].getDisplayOriginatingAddress();
-        String body = SmsMessageUtils.getMessageBody(messageParts);
         long timeSent = messageParts[0].getTimestampMillis();
         long timeReceived = System.currentTimeMillis();
         int subId = SmsMessageUtils.getSubId(messageParts[0]);
 
         SmsMessageData message = new SmsMessageData();
         message.setSender(Normalizer.normalize(sender, Normalizer.Form.NFC));
-        message.setBody(Normalizer.normalize(body, Normalizer.Form.NFC));
+        if (includeBody) {
+            message.setBodyFromParts(messageParts);
+        }
         message.setTimeSent(timeSent);
         message.setTimeReceived(timeReceived);
         message.setRead(false);
@@ -35,6 +45,20 @@ public class SmsMessageData {
         return message;
     }
 
+    private static CharSequence normalize(CharSequence str) {
+        // Most messages are already in NFC form, in which case we
+        // can keep using the original (possibly multipart) body
+        // instead of making a normalized copy.
+        if (Normalizer.isNormalized(str, Normalizer.Form.NFC)) {
+            return str;
+        }
+        return Normalizer.normalize(str, Normalizer.Form.NFC);
+    }
+
+    public SmsMessageData setBodyFromParts(SmsMessage[] messageParts) {
+        return setBody(normalize(SmsMessageUtils.getMessageBody(messageParts)));
+    }
+
     public void reset() {
         mId = -1;
         mSender = null;
@@ -56,7 +80,7 @@ public class SmsMessageData {
         return this;
     }
 
-    public SmsMessageData setBody(String body) {
+    public SmsMessageData setBody(CharSequence body) {
         mBody = body;
         return this;
     }
@@ -95,6 +119,10 @@ public class SmsMessageData {
     }
 
     public String getBody() {
+        return mBody == null ? null : mBody.toString();
+    }
+
+    public CharSequence getBodySequence() {
         return mBody;
     }
 
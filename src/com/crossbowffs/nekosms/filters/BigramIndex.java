@@ -0,0 +1,123 @@
+package com.crossbowffs.nekosms.filters;
+
+import com.crossbowffs.nekosms.data.SmsFilterMode;
+import com.crossbowffs.nekosms.data.SmsFilterNormalization;
+import com.crossbowffs.nekosms.utils.CjkBigrams;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Inverted index from CJK bigrams to the "contains" body rules that
+ * include them. If a pattern occurs in the message, every bigram of
+ * the pattern must also occur in the message, so only rules whose
+ * bigrams are all present need to be tested. The postings are kept
+ * in flat sorted arrays rather than a map of lists to keep the
+ * memory usage low with hundreds of rules.
+ */
+/* package */ class BigramIndex {
+    private final ArrayList<SmsFilter> mPendingFilters = new ArrayList<>();
+    private final ArrayList<int[]> mPendingBigrams = new ArrayList<>();
+    private SmsFilter[] mFilters;
+    private int[] mBigramCounts;
+    private int[] mKeys;
+    private int[] mOffsets;
+    private int[] mPostings;
+
+    public static int[] getIndexableBigrams(SmsFilter filter) {
+        SmsFilterPattern pattern = filter.getBodyPattern();
+        if (!(pattern instanceof StringFilterPattern) || pattern.getMode() != SmsFilterMode.CONTAINS) {
+            return null;
+        }
+        // The message bigrams are only extracted from the NFC text
+        if (pattern.getNormalization() != SmsFilterNormalization.NFC) {
+            return null;
+        }
+        int[] bigrams = CjkBigrams.extract(((StringFilterPattern)pattern).getNormalizedPattern());
+        if (bigrams.length == 0) {
+            return null;
+        }
+        return bigrams;
+    }
+
+    public void add(SmsFilter filter, int[] bigrams) {
+        mPendingFilters.add(filter);
+        mPendingBigrams.add(bigrams);
+    }
+
+    public void build() {
+        int filterCount = mPendingFilters.size();
+        mFilters = mPendingFilters.toArray(new SmsFilter[filterCount]);
+        mBigramCounts = new int[filterCount];
+
+        // Sort (bigram, filter) pairs by bigram, then split them into
+        // the unique keys and the filter indices for each key
+        int pairCount = 0;
+        for (int i = 0; i < filterCount; ++i) {
+            mBigramCounts[i] = mPendingBigrams.get(i).length;
+            pairCount += mBigramCounts[i];
+        }
+        long[] pairs = new long[pairCount];
+        int pairIndex = 0;
+        for (int i = 0; i < filterCount; ++i) {
+            for (int bigram : mPendingBigrams.get(i)) {
+                pairs[pairIndex++] = ((long)bigram << 32) | i;
+            }
+        }
+        Arrays.sort(pairs);
+
+        int[] keys = new int[pairCount];
+        int[] offsets = new int[pairCount + 1];
+        mPostings = new int[pairCount];
+        int keyCount = 0;
+        for (int i = 0; i < pairCount; ++i) {
+            int bigram = (int)(pairs[i] >> 32);
+            if (keyCount == 0 || keys[keyCount - 1] != bigram) {
+                keys[keyCount] = bigram;
+                offsets[keyCount] = i;
+                keyCount++;
+            }
+            mPostings[i] = (int)pairs[i];
+        }
+        offsets[keyCount] = pairCount;
+        mKeys = Arrays.copyOf(keys, keyCount);
+        mOffsets = Arrays.copyOf(offsets, keyCount + 1);
+
+        mPendingFilters.clear();
+        mPendingFilters.trimToSize();
+        mPendingBigrams.clear();
+        mPendingBigrams.trimToSize();
+    }
+
+    public SmsFilter findMatch(SmsFilterContext context, boolean profile) {
+        if (mFilters.length == 0) {
+            return null;
+        }
+
+        int[] bigrams = context.getBodyBigrams();
+        if (bigrams.length == 0) {
+            return null;
+        }
+
+        // The message bigrams and each filter's bigrams are both
+        // unique, so a filter is fully covered once its count
+        // reaches the number of bigrams in its pattern.
+        int[] covered = new int[mFilters.length];
+        for (int bigram : bigrams) {
+            int key = Arrays.binarySearch(mKeys, bigram);
+            if (key < 0) {
+                continue;
+            }
+            for (int i = mOffsets[key]; i < mOffsets[key + 1]; ++i) {
+                int filterIndex = mPostings[i];
+                if (++covered[filterIndex] == mBigramCounts[filterIndex]) {
+                    SmsFilter filter = mFilters[filterIndex];
+                    if (filter.match(context, profile)) {
+                        return filter;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,265 @@
+package com.crossbowffs.nekosms.filters;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import com.crossbowffs.nekosms.loader.DiagnosticsLoader;
+import com.crossbowffs.nekosms.loader.FilterRuleLoader;
+import com.crossbowffs.nekosms.utils.LatencyHistogram;
+import com.crossbowffs.nekosms.utils.WorkerThread;
+import com.crossbowffs.nekosms.utils.Xlog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.crossbowffs.nekosms.provider.DatabaseContract.Diagnostics;
+
+/* package */ class FilterStatsTracker {
+    public static class RuleStats {
+        private final FilterStatsTracker mTracker;
+        private final long mFilterId;
+        private final AtomicInteger mPendingHits = new AtomicInteger();
+        private volatile long mLastHitTime;
+        private volatile LatencyHistogram mLatency;
+
+        private RuleStats(FilterStatsTracker tracker, long filterId) {
+            mTracker = tracker;
+            mFilterId = filterId;
+        }
+
+        public void recordHit() {
+            mLastHitTime = System.currentTimeMillis();
+            mPendingHits.incrementAndGet();
+            mTracker.scheduleFlush();
+        }
+
+        public void recordLatency(long nanos) {
+            LatencyHistogram latency = mLatency;
+            if (latency != null) {
+                latency.record(nanos);
+            }
+        }
+    }
+
+    private static final long FLUSH_DELAY_MS = 60 * 1000;
+
+    private final Context mContext;
+    private final SenderVerdictCache mVerdictCache;
+    private final HashMap<Long, RuleStats> mStats = new HashMap<>();
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    private final AtomicBoolean mTimingsDirty = new AtomicBoolean();
+    private final AtomicBoolean mVerdictCacheDirty = new AtomicBoolean();
+    private volatile boolean mProfilingEnabled;
+    private final Handler mFlushHandler;
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled.set(false);
+            flush();
+        }
+    };
+
+    public FilterStatsTracker(Context context, WorkerThread worker, SenderVerdictCache verdictCache) {
+        mContext = context;
+        mVerdictCache = verdictCache;
+        mFlushHandler = worker.getHandler();
+    }
+
+    public void close() {
+        // Flush whatever is pending right away instead of waiting
+        mFlushHandler.removeCallbacks(mFlushRunnable);
+        mFlushHandler.post(mFlushRunnable);
+    }
+
+    public synchronized RuleStats getStats(long filterId) {
+        RuleStats stats = mStats.get(filterId);
+        if (stats == null) {
+            stats = new RuleStats(this, filterId);
+            mStats.put(filterId, stats);
+        }
+        if (mProfilingEnabled && stats.mLatency == null) {
+            stats.mLatency = new LatencyHistogram();
+        }
+        return stats;
+    }
+
+    public synchronized void retainStats(Set<Long> filterIds) {
+        // Stats with pending hits are kept until the next flush,
+        // writing them for a deleted rule is harmless.
+        Iterator<RuleStats> iterator = mStats.values().iterator();
+        while (iterator.hasNext()) {
+            RuleStats stats = iterator.next();
+            if (!filterIds.contains(stats.mFilterId) && stats.mPendingHits.get() == 0) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public boolean isProfilingEnabled() {
+        return mProfilingEnabled;
+    }
+
+    public synchronized void setProfilingEnabled(boolean enabled) {
+        if (mProfilingEnabled == enabled) {
+            return;
+        }
+
+        // Histograms only exist while profiling is enabled, so that
+        // they cost nothing otherwise and recording a sample never
+        // has to allocate one.
+        Xlog.i("Filter profiling %s", enabled ? "enabled" : "disabled");
+        mProfilingEnabled = enabled;
+        for (RuleStats stats : mStats.values()) {
+            stats.mLatency = enabled ? new LatencyHistogram() : null;
+        }
+        onTimingsRecorded();
+    }
+
+    public void onTimingsRecorded() {
+        mTimingsDirty.set(true);
+        scheduleFlush();
+    }
+
+    public void onVerdictCacheUsed() {
+        mVerdictCacheDirty.set(true);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        // Hits are batched up and written in one transaction
+        // after a delay, rather than once per message.
+        if (mFlushScheduled.compareAndSet(false, true)) {
+            mFlushHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+        }
+    }
+
+    private synchronized ArrayList<RuleStats> getPendingStats() {
+        ArrayList<RuleStats> pending = new ArrayList<>();
+        for (RuleStats stats : mStats.values()) {
+            if (stats.mPendingHits.get() != 0) {
+                pending.add(stats);
+            }
+        }
+        return pending;
+    }
+
+    private synchronized Bundle getTimings() {
+        // Only the percentiles are exported rather than the full
+        // histograms, which keeps the transaction small even with
+        // thousands of rules.
+        int capacity = mStats.size();
+        long[] ids = new long[capacity];
+        long[] sampleCounts = new long[capacity];
+        long[] p50Nanos = new long[capacity];
+        long[] p99Nanos = new long[capacity];
+        int count = 0;
+        for (RuleStats stats : mStats.values()) {
+            LatencyHistogram latency = stats.mLatency;
+            if (latency == null) {
+                continue;
+            }
+
+            int[] counts = latency.getCounts();
+            long sampleCount = LatencyHistogram.getTotalCount(counts);
+            if (sampleCount == 0) {
+                continue;
+            }
+
+            ids[count] = stats.mFilterId;
+            sampleCounts[count] = sampleCount;
+            p50Nanos[count] = LatencyHistogram.getValueAtPercentile(counts, 50);
+            p99Nanos[count] = LatencyHistogram.getValueAtPercentile(counts, 99);
+            count++;
+        }
+
+        Bundle timings = new Bundle(4);
+        timings.putLongArray(Diagnostics.EXTRA_IDS, trim(ids, count));
+        timings.putLongArray(Diagnostics.EXTRA_SAMPLE_COUNTS, trim(sampleCounts, count));
+        timings.putLongArray(Diagnostics.EXTRA_P50_NANOS, trim(p50Nanos, count));
+        timings.putLongArray(Diagnostics.EXTRA_P99_NANOS, trim(p99Nanos, count));
+        return timings;
+    }
+
+    private static long[] trim(long[] array, int length) {
+        long[] trimmed = new long[length];
+        System.arraycopy(array, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    private void flush() {
+        flushHits();
+        flushTimings();
+        flushVerdictCacheStats();
+    }
+
+    private void flushHits() {
+        ArrayList<RuleStats> pending = getPendingStats();
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        int count = pending.size();
+        long[] ids = new long[count];
+        int[] hitCounts = new int[count];
+        long[] lastHitTimes = new long[count];
+        for (int i = 0; i < count; ++i) {
+            RuleStats stats = pending.get(i);
+            ids[i] = stats.mFilterId;
+            lastHitTimes[i] = stats.mLastHitTime;
+            hitCounts[i] = stats.mPendingHits.getAndSet(0);
+        }
+
+        Xlog.i("Flushing hit counts for %d filters", count);
+        try {
+            FilterRuleLoader.get().recordHits(mContext, ids, hitCounts, lastHitTimes);
+        } catch (Exception e) {
+            // Put the hits back so they are retried on the next flush
+            Xlog.e("Failed to flush filter hit counts", e);
+            for (int i = 0; i < count; ++i) {
+                pending.get(i).mPendingHits.addAndGet(hitCounts[i]);
+            }
+            scheduleFlush();
+        }
+    }
+
+    private void flushTimings() {
+        if (!mTimingsDirty.getAndSet(false)) {
+            return;
+        }
+
+        // The histograms are cumulative, so it doesn't matter if
+        // the app process died and lost the previous export.
+        Bundle timings = mProfilingEnabled ? getTimings() : null;
+        Xlog.i("Exporting filter timings");
+        try {
+            DiagnosticsLoader.put(mContext, Diagnostics.KEY_FILTER_TIMINGS, timings);
+        } catch (Exception e) {
+            Xlog.e("Failed to export filter timings", e);
+            mTimingsDirty.set(true);
+            scheduleFlush();
+        }
+    }
+
+    private void flushVerdictCacheStats() {
+        if (!mVerdictCacheDirty.getAndSet(false)) {
+            return;
+        }
+
+        Bundle stats = new Bundle(3);
+        stats.putLong(Diagnostics.EXTRA_CACHE_HITS, mVerdictCache.getHitCount());
+        stats.putLong(Diagnostics.EXTRA_CACHE_MISSES, mVerdictCache.getMissCount());
+        stats.putLong(Diagnostics.EXTRA_CACHE_UNCACHEABLE, mVerdictCache.getUncacheableCount());
+        Xlog.i("Exporting sender verdict cache stats");
+        try {
+            DiagnosticsLoader.put(mContext, Diagnostics.KEY_VERDICT_CACHE, stats);
+        } catch (Exception e) {
+            Xlog.e("Failed to export sender verdict cache stats", e);
+            mVerdictCacheDirty.set(true);
+            scheduleFlush();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.crossbowffs.nekosms.filters;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Detects SMS bombing, where the same text (or texts from the same
+ * range of numbers) arrives many times in a short period. Messages
+ * are counted per sender prefix and per body fingerprint over a
+ * sliding one-minute window, and once either count goes over the
+ * threshold, messages are considered part of a flood until the
+ * rate drops again.
+ *
+ * The counters live in fixed-size tables, so memory usage does not
+ * depend on how many distinct senders are seen. Each key is counted
+ * in two rows with independent hashes and the smaller count is used,
+ * so an unrelated sender colliding with a flood in one row is not
+ * blocked because of it.
+ */
+public class FloodDetector {
+    private static class WindowCounter {
+        // Each cell packs (bucket epoch << 32) | count, so a cell can
+        // be both reset for a new bucket and incremented in one CAS
+        private final AtomicLongArray mCells = new AtomicLongArray(ROW_COUNT * SLOT_COUNT * BUCKET_COUNT);
+
+        public int increment(long hash, long epoch) {
+            int count = Integer.MAX_VALUE;
+            for (int row = 0; row < ROW_COUNT; ++row) {
+                int slot = (int)(hash >>> (row * 32)) & (SLOT_COUNT - 1);
+                int base = (row * SLOT_COUNT + slot) * BUCKET_COUNT;
+                count = Math.min(count, incrementSlot(base, epoch));
+            }
+            return count;
+        }
+
+        private int incrementSlot(int base, long epoch) {
+            int index = base + (int)(epoch % BUCKET_COUNT);
+            while (true) {
+                long oldValue = mCells.get(index);
+                long newValue;
+                if ((oldValue >>> 32) == epoch) {
+                    newValue = oldValue + 1;
+                } else {
+                    newValue = (epoch << 32) | 1;
+                }
+                if (mCells.compareAndSet(index, oldValue, newValue)) {
+                    break;
+                }
+            }
+
+            int count = 0;
+            for (int i = 0; i < BUCKET_COUNT; ++i) {
+                long value = mCells.get(base + i);
+                if (epoch - (value >>> 32) < BUCKET_COUNT) {
+                    count += (int)value;
+                }
+            }
+            return count;
+        }
+    }
+
+    private static final long WINDOW_MILLIS = 60 * 1000;
+    private static final int BUCKET_COUNT = 6;
+    private static final long BUCKET_MILLIS = WINDOW_MILLIS / BUCKET_COUNT;
+    private static final int ROW_COUNT = 2;
+    private static final int SLOT_COUNT = 256;
+
+    // Bombing tools usually rotate the last few digits of the sender
+    private static final int SENDER_PREFIX_LENGTH = 7;
+
+    // Bodies with less text than this are too generic to fingerprint
+    private static final int MIN_FINGERPRINT_LENGTH = 8;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final WindowCounter mSenderCounter = new WindowCounter();
+    private final WindowCounter mBodyCounter = new WindowCounter();
+    private volatile int mThreshold;
+
+    /**
+     * Sets the maximum number of messages per minute from one sender
+     * prefix or with one body fingerprint. Zero disables detection.
+     */
+    public void setThreshold(int threshold) {
+        mThreshold = threshold;
+    }
+
+    /**
+     * Counts the message and returns whether it is part of a flood.
+     * This must be called for every message, not only those that
+     * would otherwise be allowed, so the window stays accurate.
+     */
+    public boolean recordMessage(CharSequence sender, CharSequence body) {
+        int threshold = mThreshold;
+        if (threshold <= 0) {
+            return false;
+        }
+
+        long epoch = SystemClock.elapsedRealtime() / BUCKET_MILLIS;
+        boolean flooding = false;
+        if (sender != null && sender.length() > 0) {
+            int count = mSenderCounter.increment(hashSenderPrefix(sender), epoch);
+            flooding = count > threshold;
+        }
+        long fingerprint = fingerprintBody(body);
+        if (fingerprint != 0) {
+            int count = mBodyCounter.increment(fingerprint, epoch);
+            flooding |= count > threshold;
+        }
+        return flooding;
+    }
+
+    private static long hashSenderPrefix(CharSequence sender) {
+        // Only look at the digits of phone numbers, so formatting
+        // differences don't split the count. Alphanumeric senders
+        // are used as-is.
+        boolean hasDigits = false;
+        for (int i = 0; i < sender.length(); ++i) {
+            if (Character.isDigit(sender.charAt(i))) {
+                hasDigits = true;
+                break;
+            }
+        }
+
+        long hash = FNV_OFFSET_BASIS;
+        int length = 0;
+        for (int i = 0; i < sender.length() && length < SENDER_PREFIX_LENGTH; ++i) {
+            char c = sender.charAt(i);
+            if (hasDigits && !Character.isDigit(c)) {
+                continue;
+            }
+            hash = (hash ^ c) * FNV_PRIME;
+            length++;
+        }
+        return mix(hash);
+    }
+
+    private static long fingerprintBody(CharSequence body) {
+        // Digits and whitespace are skipped, since flooded messages
+        // often only differ by a verification code or counter
+        if (body == null) {
+            return 0;
+        }
+
+        long hash = FNV_OFFSET_BASIS;
+        int length = 0;
+        for (int i = 0; i < body.length(); ++i) {
+            char c = body.charAt(i);
+            if (Character.isDigit(c) || Character.isWhitespace(c)) {
+                continue;
+            }
+            hash = (hash ^ Character.toLowerCase(c)) * FNV_PRIME;
+            length++;
+        }
+        if (length < MIN_FINGERPRINT_LENGTH) {
+            return 0;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long hash) {
+        // FNV leaves the high bits poorly mixed for short inputs,
+        // which matters since each row uses a different half
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
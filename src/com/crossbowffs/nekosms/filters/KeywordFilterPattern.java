@@ -0,0 +1,89 @@
+package com.crossbowffs.nekosms.filters;
+
+import com.crossbowffs.nekosms.data.InvalidFilterException;
+import com.crossbowffs.nekosms.data.SmsFilterPatternData;
+import com.crossbowffs.nekosms.utils.CjkBigrams;
+import com.crossbowffs.nekosms.utils.StringUtils;
+import com.crossbowffs.nekosms.utils.TokenList;
+
+/* package */ class KeywordFilterPattern extends SmsFilterPattern {
+    private final String[] mFoldedWords;
+    private final String[] mWords;
+
+    public KeywordFilterPattern(SmsFilterPatternData data) {
+        super(data);
+
+        // CJK text has no spaces between words, so a whole run of it
+        // would be a single word that almost never matches. The editor
+        // rejects these, but imported rules are only checked here.
+        if (CjkBigrams.containsCjk(data.getPattern())) {
+            throw new InvalidFilterException("CJK text is not supported for keyword patterns");
+        }
+
+        // A pattern may contain more than one word, in which case
+        // the words must appear consecutively in the message
+        String pattern = getNormalizedPattern();
+        TokenList tokens = TokenList.tokenize(pattern);
+        mFoldedWords = new String[tokens.size()];
+        mWords = new String[tokens.size()];
+        for (int i = 0; i < tokens.size(); ++i) {
+            mFoldedWords[i] = tokens.get(i);
+            mWords[i] = pattern.substring(tokens.getStart(i), tokens.getEnd(i));
+        }
+    }
+
+    public String getIndexKey() {
+        if (mFoldedWords.length == 0) {
+            return null;
+        }
+        return mFoldedWords[0];
+    }
+
+    @Override
+    public int estimateSize() {
+        int size = super.estimateSize() + 2 * (ARRAY_SIZE + 4 * mWords.length);
+        for (int i = 0; i < mWords.length; ++i) {
+            size += estimateStringSize(mFoldedWords[i]) + estimateStringSize(mWords[i]);
+        }
+        return size;
+    }
+
+    @Override
+    public boolean match(SmsFilterContext context) {
+        if (mFoldedWords.length == 0) {
+            return false;
+        }
+
+        TokenList tokens = context.getTokens(getField(), getNormalization());
+        int end = tokens.size() - mFoldedWords.length;
+        for (int i = 0; i <= end; ++i) {
+            if (matchAt(context, tokens, i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchAt(SmsFilterContext context, TokenList tokens, int offset) {
+        for (int i = 0; i < mFoldedWords.length; ++i) {
+            if (!mFoldedWords[i].equals(tokens.get(offset + i))) {
+                return false;
+            }
+        }
+
+        if (!isCaseSensitive()) {
+            return true;
+        }
+
+        // Tokens are always case-folded, so check the original text
+        CharSequence text = getText(context);
+        for (int i = 0; i < mWords.length; ++i) {
+            int start = tokens.getStart(offset + i);
+            int end = tokens.getEnd(offset + i);
+            if (end - start != mWords[i].length() || !StringUtils.regionMatches(text, start, mWords[i], false)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,6 +1,9 @@
 package com.crossbowffs.nekosms.filters;
 
+import android.os.SystemClock;
+import com.crossbowffs.nekosms.data.InvalidFilterException;
 import com.crossbowffs.nekosms.data.SmsFilterMode;
+import com.crossbowffs.nekosms.data.SmsFilterNormalization;
 import com.crossbowffs.nekosms.data.SmsFilterPatternData;
 
 import java.text.Normalizer;
@@ -8,42 +11,109 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /* package */ class RegexFilterPattern extends SmsFilterPattern {
-    private final Matcher mMatcher;
+    // Rough size of a compiled pattern and its matcher, most of which
+    // is native memory held by ICU; it grows with the pattern length
+    private static final int COMPILED_SIZE = 1024;
+    private static final int COMPILED_SIZE_PER_CHAR = 32;
+
+    private final String mRegexPattern;
+    private final int mRegexFlags;
+    // The compiled pattern is by far the largest part of a loaded rule,
+    // so it may be released to save memory (see SmsFilterSnapshot) and
+    // is compiled again the next time the rule is evaluated. Compiling
+    // counts as a use, so patterns are not released right after a load.
+    private volatile Matcher mMatcher;
+    private volatile long mLastUseTime;
 
     public RegexFilterPattern(SmsFilterPatternData data) {
         super(data);
 
+        // The skeleton maps digits to letters (e.g. 0 -> o), which
+        // would silently break \d, [0-9], and any literal digits.
+        // Wildcards are fine, since they are converted to skeletons too.
+        if (getMode() == SmsFilterMode.REGEX && getNormalization() == SmsFilterNormalization.SKELETON) {
+            throw new InvalidFilterException("Skeleton normalization is not supported for regular expressions");
+        }
+
         // We need to normalize the pattern ourselves since Android
         // doesn't support the CANON_EQ regex flag. Note that this
         // only has an effect if the pattern contains the actual
         // character (e.g. \u3060), NOT the escape sequence (e.g. \\u3060)
-        String regexPattern = Normalizer.normalize(getPattern(), Normalizer.Form.NFC);
+        String regexPattern;
 
-        // If this is a wildcard pattern, convert it to regex syntax
+        // If this is a wildcard pattern, convert it to regex syntax.
+        // Regular expressions only ever get NFC, since anything more
+        // could mangle escapes and character classes; they are just
+        // matched against the normalized message instead.
         if (getMode() == SmsFilterMode.WILDCARD) {
-            regexPattern = wildcardToRegex(regexPattern);
+            regexPattern = wildcardToRegex(getNormalizedPattern());
+        } else {
+            regexPattern = Normalizer.normalize(getPattern(), Normalizer.Form.NFC);
         }
 
         int regexFlags = Pattern.UNICODE_CASE;
         if (!isCaseSensitive()) {
             regexFlags |= Pattern.CASE_INSENSITIVE;
         }
-        mMatcher = Pattern.compile(regexPattern, regexFlags).matcher("");
+        mRegexPattern = regexPattern;
+        mRegexFlags = regexFlags;
+
+        // Compiled right away, so that invalid patterns are rejected
+        // when the rules are loaded rather than when they are used
+        mMatcher = compile();
+        mLastUseTime = SystemClock.uptimeMillis();
+    }
+
+    private Matcher compile() {
+        return Pattern.compile(mRegexPattern, mRegexFlags).matcher("");
+    }
+
+    public boolean isCompiled() {
+        return mMatcher != null;
+    }
+
+    public long getLastUseTime() {
+        return mLastUseTime;
+    }
+
+    /**
+     * Drops the compiled pattern, returning the estimated number of
+     * bytes freed. This is safe to call while the pattern is being
+     * matched on another thread, which just keeps using its own
+     * reference to the old one.
+     */
+    public int release() {
+        if (mMatcher == null) {
+            return 0;
+        }
+        mMatcher = null;
+        return estimateCompiledSize();
+    }
+
+    private int estimateCompiledSize() {
+        return COMPILED_SIZE + COMPILED_SIZE_PER_CHAR * mRegexPattern.length();
     }
 
     @Override
-    public boolean match(String sender, String body) {
-        switch (getField()) {
-        case SENDER:
-            mMatcher.reset(sender);
-            break;
-        case BODY:
-            mMatcher.reset(body);
-            break;
+    public int estimateSize() {
+        int size = super.estimateSize() + estimateStringSize(mRegexPattern);
+        if (mMatcher != null) {
+            size += estimateCompiledSize();
         }
+        return size;
+    }
 
-        boolean matches = mMatcher.find();
-        mMatcher.reset("");
+    @Override
+    public boolean match(SmsFilterContext context) {
+        Matcher matcher = mMatcher;
+        if (matcher == null) {
+            matcher = compile();
+            mMatcher = matcher;
+        }
+        mLastUseTime = SystemClock.uptimeMillis();
+        matcher.reset(getText(context));
+        boolean matches = matcher.find();
+        matcher.reset("");
         return matches;
     }
 
@@ -0,0 +1,81 @@
+package com.crossbowffs.nekosms.filters;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of rule evaluation results, keyed by sender.
+ * Only results that the filter index has proven to be independent
+ * of the message body may be stored here, see
+ * {@link SmsFilterIndex#isSenderOnlyVerdict(SmsFilter)}. The cache
+ * is tied to a generation of the loaded rules, and is cleared as
+ * soon as it is used with a different one.
+ */
+/* package */ class SenderVerdictCache {
+    public static class Verdict {
+        private final SmsFilter mFilter;
+
+        private Verdict(SmsFilter filter) {
+            mFilter = filter;
+        }
+
+        public SmsFilter getFilter() {
+            return mFilter;
+        }
+    }
+
+    private static final int CAPACITY = 128;
+
+    private final LinkedHashMap<String, Verdict> mVerdicts = new LinkedHashMap<String, Verdict>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Verdict> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+    private long mGeneration;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mUncacheable = new AtomicLong();
+
+    public synchronized Verdict get(String sender, long generation) {
+        if (mGeneration != generation) {
+            mVerdicts.clear();
+            mGeneration = generation;
+        }
+
+        Verdict verdict = mVerdicts.get(sender);
+        if (verdict != null) {
+            mHits.incrementAndGet();
+        } else {
+            mMisses.incrementAndGet();
+        }
+        return verdict;
+    }
+
+    public synchronized void put(String sender, long generation, SmsFilter filter) {
+        if (mGeneration == generation) {
+            mVerdicts.put(sender, new Verdict(filter));
+        }
+    }
+
+    public synchronized void clear() {
+        mVerdicts.clear();
+    }
+
+    public void onUncacheable() {
+        mUncacheable.incrementAndGet();
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public long getUncacheableCount() {
+        return mUncacheable.get();
+    }
+}
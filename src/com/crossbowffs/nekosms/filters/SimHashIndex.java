@@ -0,0 +1,100 @@
+package com.crossbowffs.nekosms.filters;
+
+import com.crossbowffs.nekosms.data.SmsFilterPatternData;
+import com.crossbowffs.nekosms.utils.SimHash;
+
+import java.util.Arrays;
+
+/**
+ * Bounded table of the SimHash fingerprints of recently blocked
+ * messages, used to find messages that are near-duplicates of them.
+ * Once full, the oldest fingerprint is replaced.
+ *
+ * Fingerprints are split into {@link #MAX_DISTANCE} + 1 blocks of
+ * bits. If two fingerprints differ in at most that many bits, at
+ * least one block must be identical, so a lookup only has to test
+ * the fingerprints that share a block with the message rather than
+ * the whole table.
+ */
+/* package */ class SimHashIndex {
+    public static final int MAX_DISTANCE = SmsFilterPatternData.MAX_SIMILAR_DISTANCE;
+    private static final int BLOCK_COUNT = MAX_DISTANCE + 1;
+    private static final int MAX_BLOCK_BITS = (64 + BLOCK_COUNT - 1) / BLOCK_COUNT;
+    /* package */ static final int CAPACITY = 256;
+    private static final int NONE = -1;
+
+    private final long[] mFingerprints = new long[CAPACITY];
+    // For each block, the first entry with each block value, and
+    // the next entry with the same block value as each entry
+    private final int[][] mHeads = new int[BLOCK_COUNT][1 << MAX_BLOCK_BITS];
+    private final int[][] mNext = new int[BLOCK_COUNT][CAPACITY];
+    private int mSize;
+    private int mNextEntry;
+
+    public SimHashIndex() {
+        for (int[] heads : mHeads) {
+            Arrays.fill(heads, NONE);
+        }
+    }
+
+    private static int getBlock(long fingerprint, int block) {
+        int start = block * 64 / BLOCK_COUNT;
+        int end = (block + 1) * 64 / BLOCK_COUNT;
+        return (int)(fingerprint >>> start) & ((1 << (end - start)) - 1);
+    }
+
+    public synchronized void add(long fingerprint) {
+        int entry = mNextEntry;
+        if (mSize == CAPACITY) {
+            remove(entry);
+        } else {
+            mSize++;
+        }
+
+        mFingerprints[entry] = fingerprint;
+        for (int block = 0; block < BLOCK_COUNT; ++block) {
+            int key = getBlock(fingerprint, block);
+            mNext[block][entry] = mHeads[block][key];
+            mHeads[block][key] = entry;
+        }
+        mNextEntry = (entry + 1) % CAPACITY;
+    }
+
+    private void remove(int entry) {
+        long fingerprint = mFingerprints[entry];
+        for (int block = 0; block < BLOCK_COUNT; ++block) {
+            int key = getBlock(fingerprint, block);
+            int[] next = mNext[block];
+            if (mHeads[block][key] == entry) {
+                mHeads[block][key] = next[entry];
+                continue;
+            }
+            for (int i = mHeads[block][key]; i != NONE; i = next[i]) {
+                if (next[i] == entry) {
+                    next[i] = next[entry];
+                    break;
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        for (int[] heads : mHeads) {
+            Arrays.fill(heads, NONE);
+        }
+        mSize = 0;
+        mNextEntry = 0;
+    }
+
+    public synchronized boolean containsNear(long fingerprint, int maxDistance) {
+        for (int block = 0; block < BLOCK_COUNT; ++block) {
+            int key = getBlock(fingerprint, block);
+            for (int i = mHeads[block][key]; i != NONE; i = mNext[block][i]) {
+                if (SimHash.distance(fingerprint, mFingerprints[i]) <= maxDistance) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,41 @@
+package com.crossbowffs.nekosms.filters;
+
+import com.crossbowffs.nekosms.data.InvalidFilterException;
+import com.crossbowffs.nekosms.data.SmsFilterField;
+import com.crossbowffs.nekosms.data.SmsFilterPatternData;
+
+/* package */ class SimilarFilterPattern extends SmsFilterPattern {
+    private final int mMaxDistance;
+
+    public SimilarFilterPattern(SmsFilterPatternData data) {
+        super(data);
+
+        // Only message bodies are fingerprinted, senders are too
+        // short for similarity to mean anything
+        if (getField() != SmsFilterField.BODY) {
+            throw new InvalidFilterException("Similarity matching is only supported for the body");
+        }
+
+        // The pattern is the number of bits the fingerprints
+        // are allowed to differ by
+        mMaxDistance = parseDistance(getPattern());
+    }
+
+    private static int parseDistance(String pattern) {
+        int distance;
+        try {
+            distance = Integer.parseInt(pattern.trim());
+        } catch (NumberFormatException e) {
+            throw new InvalidFilterException("Invalid similarity distance: " + pattern, e);
+        }
+        if (distance < 0 || distance > SmsFilterPatternData.MAX_SIMILAR_DISTANCE) {
+            throw new InvalidFilterException("Similarity distance out of range: " + distance);
+        }
+        return distance;
+    }
+
+    @Override
+    public boolean match(SmsFilterContext context) {
+        return context.isNearBlockedBody(mMaxDistance);
+    }
+}
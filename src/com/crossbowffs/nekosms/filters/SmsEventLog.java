@@ -0,0 +1,121 @@
+package com.crossbowffs.nekosms.filters;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import com.crossbowffs.nekosms.data.SmsEvent;
+import com.crossbowffs.nekosms.loader.DiagnosticsLoader;
+import com.crossbowffs.nekosms.utils.WorkerThread;
+import com.crossbowffs.nekosms.utils.Xlog;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.crossbowffs.nekosms.provider.DatabaseContract.Diagnostics;
+
+/**
+ * Always-on flight recorder for the module. Events are written into
+ * a fixed-size ring buffer of longs, so the oldest events are simply
+ * overwritten and recording never allocates or formats anything. The
+ * recent events are exported to the app's provider in the background
+ * a while after they are recorded. Each export starts the app process
+ * if it is not running, so all events recorded in that time (e.g. for
+ * a burst of messages) share a single export.
+ *
+ * Writers claim a slot with a single atomic increment and never lock.
+ * Each slot starts with a stamp holding the sequence number of the
+ * event in it, which is replaced by a marker while the slot is being
+ * written, so the exporter can tell when it has read a torn or
+ * overwritten event and skip it. The marker is only set if the slot
+ * holds an older event, so if the buffer wraps around while a writer
+ * is still in its slot, the other writer drops its event instead of
+ * mixing the two, and a late writer never overwrites a newer event.
+ */
+public class SmsEventLog {
+    private static final int CAPACITY = 1024;
+    private static final int SLOT_SIZE = SmsEvent.ENCODED_SIZE + 1;
+    private static final long EXPORT_DELAY_MS = 60 * 1000;
+    private static final long STAMP_EMPTY = -1;
+    private static final long STAMP_WRITING = -2;
+
+    private final Context mContext;
+    private final AtomicLongArray mSlots = new AtomicLongArray(CAPACITY * SLOT_SIZE);
+    private final AtomicLong mNextSequence = new AtomicLong();
+    private final AtomicBoolean mExportScheduled = new AtomicBoolean();
+    private final Handler mExportHandler;
+    private final Runnable mExportRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mExportScheduled.set(false);
+            export();
+        }
+    };
+
+    public SmsEventLog(Context context, WorkerThread worker) {
+        mContext = context;
+        for (int i = 0; i < CAPACITY; ++i) {
+            mSlots.set(i * SLOT_SIZE, STAMP_EMPTY);
+        }
+        mExportHandler = worker.getHandler();
+    }
+
+    public void record(int type, int code, long value) {
+        long sequence = mNextSequence.getAndIncrement();
+        int base = (int)(sequence % CAPACITY) * SLOT_SIZE;
+        long stamp = mSlots.get(base);
+        if (stamp == STAMP_WRITING || stamp > sequence || !mSlots.compareAndSet(base, stamp, STAMP_WRITING)) {
+            // Another writer is in (or already past) this slot, a whole
+            // lap of the buffer away. This takes CAPACITY events while
+            // one is being written, so losing one of them is fine.
+            return;
+        }
+        mSlots.set(base + 1, System.currentTimeMillis());
+        mSlots.set(base + 2, SmsEvent.encodeTypeAndCode(type, code));
+        mSlots.set(base + 3, value);
+        mSlots.set(base, sequence);
+
+        if (mExportScheduled.compareAndSet(false, true)) {
+            mExportHandler.postDelayed(mExportRunnable, EXPORT_DELAY_MS);
+        }
+    }
+
+    private long[] getEvents() {
+        // Events are returned oldest first
+        long end = mNextSequence.get();
+        long start = Math.max(0, end - CAPACITY);
+        long[] events = new long[(int)(end - start) * SmsEvent.ENCODED_SIZE];
+        int count = 0;
+        for (long sequence = start; sequence < end; ++sequence) {
+            int base = (int)(sequence % CAPACITY) * SLOT_SIZE;
+            if (mSlots.get(base) != sequence) {
+                continue;
+            }
+            long time = mSlots.get(base + 1);
+            long typeAndCode = mSlots.get(base + 2);
+            long value = mSlots.get(base + 3);
+            if (mSlots.get(base) != sequence) {
+                continue;
+            }
+            events[count++] = time;
+            events[count++] = typeAndCode;
+            events[count++] = value;
+        }
+
+        long[] trimmed = new long[count];
+        System.arraycopy(events, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    private void export() {
+        Bundle data = new Bundle(1);
+        data.putLongArray(Diagnostics.EXTRA_EVENTS, getEvents());
+        try {
+            DiagnosticsLoader.put(mContext, Diagnostics.KEY_EVENT_LOG, data);
+        } catch (Exception e) {
+            // Not recorded as an event, since that would just
+            // schedule another export that is likely to fail
+            Xlog.e("Failed to export event log", e);
+        }
+    }
+}
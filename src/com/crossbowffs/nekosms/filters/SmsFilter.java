@@ -4,36 +4,96 @@ import com.crossbowffs.nekosms.data.*;
 import com.crossbowffs.nekosms.utils.Xlog;
 
 public class SmsFilter {
+    private final long mId;
     private final SmsFilterAction mAction;
     private final SmsFilterPattern mSenderPattern;
     private final SmsFilterPattern mBodyPattern;
+    private FilterStatsTracker.RuleStats mStats;
 
     public SmsFilter(SmsFilterData data) {
+        mId = data.getId();
         mAction = data.getAction();
         mSenderPattern = createPattern(data.getSenderPattern());
         mBodyPattern = createPattern(data.getBodyPattern());
     }
 
+    public long getId() {
+        return mId;
+    }
+
     public SmsFilterAction getAction() {
         return mAction;
     }
 
-    public boolean match(String sender, String body) {
+    /* package */ void setStats(FilterStatsTracker.RuleStats stats) {
+        mStats = stats;
+    }
+
+    /* package */ void recordHit() {
+        if (mStats != null) {
+            mStats.recordHit();
+        }
+    }
+
+    /* package */ void recordLatency(long nanos) {
+        if (mStats != null) {
+            mStats.recordLatency(nanos);
+        }
+    }
+
+    /* package */ SmsFilterPattern getSenderPattern() {
+        return mSenderPattern;
+    }
+
+    /* package */ SmsFilterPattern getBodyPattern() {
+        return mBodyPattern;
+    }
+
+    /* package */ int estimateSize() {
+        int size = SmsFilterPattern.OBJECT_SIZE;
+        if (mSenderPattern != null) {
+            size += mSenderPattern.estimateSize();
+        }
+        if (mBodyPattern != null) {
+            size += mBodyPattern.estimateSize();
+        }
+        return size;
+    }
+
+    /* package */ boolean match(SmsFilterContext context) {
         if (mSenderPattern == null && mBodyPattern == null) {
             Xlog.w("No sender or body pattern, ignoring");
             return false;
         }
-        Xlog.v("Action: %s", getAction().name());
+        if (Xlog.VERBOSE) {
+            Xlog.v("Action: %s", getAction().name());
+        }
         boolean matches = true;
         if (mSenderPattern != null) {
-            mSenderPattern.printToLog();
-            matches = mSenderPattern.match(sender, body);
+            if (Xlog.VERBOSE) {
+                mSenderPattern.printToLog();
+            }
+            matches = mSenderPattern.match(context);
         }
         if (mBodyPattern != null) {
-            mBodyPattern.printToLog();
-            matches = matches && mBodyPattern.match(sender, body);
+            if (Xlog.VERBOSE) {
+                mBodyPattern.printToLog();
+            }
+            matches = matches && mBodyPattern.match(context);
+        }
+        if (Xlog.VERBOSE) {
+            Xlog.v("Matches: %s", matches);
+        }
+        return matches;
+    }
+
+    /* package */ boolean match(SmsFilterContext context, boolean profile) {
+        if (!profile) {
+            return match(context);
         }
-        Xlog.v("Matches: %s", matches);
+        long start = System.nanoTime();
+        boolean matches = match(context);
+        recordLatency(System.nanoTime() - start);
         return matches;
     }
 
@@ -50,6 +110,10 @@ public class SmsFilter {
         case SUFFIX:
         case EQUALS:
             return new StringFilterPattern(data);
+        case KEYWORD:
+            return new KeywordFilterPattern(data);
+        case SIMILAR:
+            return new SimilarFilterPattern(data);
         default:
             throw new IllegalArgumentException("Invalid filter mode: " + data.getMode());
         }
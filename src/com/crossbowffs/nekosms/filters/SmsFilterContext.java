@@ -0,0 +1,89 @@
+package com.crossbowffs.nekosms.filters;
+
+import com.crossbowffs.nekosms.data.SmsFilterField;
+import com.crossbowffs.nekosms.data.SmsFilterNormalization;
+import com.crossbowffs.nekosms.utils.CjkBigrams;
+import com.crossbowffs.nekosms.utils.SimHash;
+import com.crossbowffs.nekosms.utils.TokenList;
+
+/**
+ * Holds the message being evaluated, along with anything derived
+ * from it that more than one rule may need. Derived values are
+ * computed lazily, at most once per message, so rules never repeat
+ * the work and messages that don't need them never pay for it.
+ */
+/* package */ class SmsFilterContext {
+    private static final int FIELD_COUNT = SmsFilterField.values().length;
+    private static final int NORMALIZATION_COUNT = SmsFilterNormalization.values().length;
+
+    // Indexed by field and normalization, see getSlot()
+    private final CharSequence[] mTexts = new CharSequence[FIELD_COUNT * NORMALIZATION_COUNT];
+    private final TokenList[] mTokens = new TokenList[FIELD_COUNT * NORMALIZATION_COUNT];
+    private int[] mBodyBigrams;
+    private final SimHashIndex mBlockedFingerprints;
+    private boolean mHasBodySimHash;
+    private long mBodySimHash;
+
+    public SmsFilterContext(CharSequence sender, CharSequence body, SimHashIndex blockedFingerprints) {
+        mBlockedFingerprints = blockedFingerprints;
+        mTexts[getSlot(SmsFilterField.SENDER, SmsFilterNormalization.NFC)] = sender;
+        mTexts[getSlot(SmsFilterField.BODY, SmsFilterNormalization.NFC)] = body;
+    }
+
+    private static int getSlot(SmsFilterField field, SmsFilterNormalization normalization) {
+        return field.ordinal() * NORMALIZATION_COUNT + normalization.ordinal();
+    }
+
+    public CharSequence getText(SmsFilterField field) {
+        return getText(field, SmsFilterNormalization.NFC);
+    }
+
+    public CharSequence getText(SmsFilterField field, SmsFilterNormalization normalization) {
+        int slot = getSlot(field, normalization);
+        CharSequence text = mTexts[slot];
+        if (text == null) {
+            CharSequence nfcText = mTexts[getSlot(field, SmsFilterNormalization.NFC)];
+            text = SmsTextNormalizer.normalizeText(nfcText, normalization);
+            mTexts[slot] = text;
+        }
+        return text;
+    }
+
+    public TokenList getTokens(SmsFilterField field) {
+        return getTokens(field, SmsFilterNormalization.NFC);
+    }
+
+    public TokenList getTokens(SmsFilterField field, SmsFilterNormalization normalization) {
+        int slot = getSlot(field, normalization);
+        TokenList tokens = mTokens[slot];
+        if (tokens == null) {
+            tokens = TokenList.tokenize(getText(field, normalization));
+            mTokens[slot] = tokens;
+        }
+        return tokens;
+    }
+
+    public int[] getBodyBigrams() {
+        if (mBodyBigrams == null) {
+            mBodyBigrams = CjkBigrams.extract(getText(SmsFilterField.BODY));
+        }
+        return mBodyBigrams;
+    }
+
+    public long getBodySimHash() {
+        if (!mHasBodySimHash) {
+            mBodySimHash = SimHash.compute(getText(SmsFilterField.BODY));
+            mHasBodySimHash = true;
+        }
+        return mBodySimHash;
+    }
+
+    public boolean isNearBlockedBody(int maxDistance) {
+        // Bodies without any words have no fingerprint to compare
+        long fingerprint = getBodySimHash();
+        if (fingerprint == 0) {
+            return false;
+        }
+        return mBlockedFingerprints.containsNear(fingerprint, maxDistance);
+    }
+}
@@ -0,0 +1,248 @@
+package com.crossbowffs.nekosms.filters;
+
+import com.crossbowffs.nekosms.data.SmsFilterField;
+import com.crossbowffs.nekosms.data.SmsFilterMode;
+import com.crossbowffs.nekosms.data.SmsFilterNormalization;
+import com.crossbowffs.nekosms.utils.TokenList;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Set of loaded filters, organized so that evaluating a message
+ * doesn't have to test every rule. Keyword rules are looked up by
+ * the words in the message, so their cost depends on the message
+ * length rather than the number of rules. Rules containing CJK
+ * text, which can't be split into words, are found through a
+ * bigram index instead. All other rules are tested one by one.
+ */
+/* package */ class SmsFilterIndex {
+    private static class KeywordIndex {
+        private final SmsFilterField mField;
+        private final SmsFilterNormalization mNormalization;
+        private final HashMap<String, List<SmsFilter>> mFilters = new HashMap<>();
+
+        public KeywordIndex(SmsFilterField field, SmsFilterNormalization normalization) {
+            mField = field;
+            mNormalization = normalization;
+        }
+
+        public void add(String key, SmsFilter filter) {
+            List<SmsFilter> filters = mFilters.get(key);
+            if (filters == null) {
+                filters = new ArrayList<>(1);
+                mFilters.put(key, filters);
+            }
+            filters.add(filter);
+        }
+
+        public SmsFilter findMatch(SmsFilterContext context, boolean profile) {
+            if (mFilters.isEmpty()) {
+                return null;
+            }
+
+            // Keywords are looked up in the tokens of the text as seen
+            // by the rules in this index, so e.g. skeleton rules are
+            // only looked up by the words of the message skeleton
+            TokenList tokens = context.getTokens(mField, mNormalization);
+            for (int i = 0; i < tokens.size(); ++i) {
+                List<SmsFilter> candidates = mFilters.get(tokens.get(i));
+                if (candidates == null) {
+                    continue;
+                }
+                for (SmsFilter candidate : candidates) {
+                    if (candidate.match(context, profile)) {
+                        return candidate;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class Bucket {
+        private final ArrayList<SmsFilter> mLinearFilters = new ArrayList<>();
+        private final KeywordIndex[] mKeywordFilters = new KeywordIndex[FIELDS.length * NORMALIZATIONS.length];
+        private final BigramIndex mBigramFilters = new BigramIndex();
+        private int mCount;
+        private boolean mHasBodyFilters;
+
+        public Bucket() {
+            // Body indexes come first, so they are also checked first
+            for (int i = 0; i < FIELDS.length; ++i) {
+                for (int j = 0; j < NORMALIZATIONS.length; ++j) {
+                    mKeywordFilters[i * NORMALIZATIONS.length + j] = new KeywordIndex(FIELDS[i], NORMALIZATIONS[j]);
+                }
+            }
+        }
+
+        public void add(SmsFilter filter) {
+            // If a rule has both a sender and body keyword, only
+            // one of them needs to be indexed since both must match
+            if (!addToIndex(filter.getBodyPattern(), filter) && !addToIndex(filter.getSenderPattern(), filter)) {
+                int[] bigrams = BigramIndex.getIndexableBigrams(filter);
+                if (bigrams != null) {
+                    mBigramFilters.add(filter, bigrams);
+                } else {
+                    mLinearFilters.add(filter);
+                }
+            }
+            mCount++;
+            if (filter.getBodyPattern() != null) {
+                mHasBodyFilters = true;
+            }
+        }
+
+        public void build() {
+            mBigramFilters.build();
+            mLinearFilters.trimToSize();
+        }
+
+        public int size() {
+            return mCount;
+        }
+
+        public boolean hasBodyFilters() {
+            return mHasBodyFilters;
+        }
+
+        public SmsFilter findMatch(SmsFilterContext context, boolean profile) {
+            for (KeywordIndex index : mKeywordFilters) {
+                SmsFilter filter = index.findMatch(context, profile);
+                if (filter != null) {
+                    return filter;
+                }
+            }
+
+            SmsFilter filter = mBigramFilters.findMatch(context, profile);
+            if (filter != null) {
+                return filter;
+            }
+
+            for (SmsFilter linearFilter : mLinearFilters) {
+                if (linearFilter.match(context, profile)) {
+                    return linearFilter;
+                }
+            }
+            return null;
+        }
+
+        private boolean addToIndex(SmsFilterPattern pattern, SmsFilter filter) {
+            if (!(pattern instanceof KeywordFilterPattern)) {
+                return false;
+            }
+            String key = ((KeywordFilterPattern)pattern).getIndexKey();
+            if (key == null) {
+                return false;
+            }
+            int fieldIndex = pattern.getField() == SmsFilterField.BODY ? 0 : 1;
+            mKeywordFilters[fieldIndex * NORMALIZATIONS.length + pattern.getNormalization().ordinal()].add(key, filter);
+            return true;
+        }
+    }
+
+    private static final SmsFilterField[] FIELDS = {SmsFilterField.BODY, SmsFilterField.SENDER};
+    private static final SmsFilterNormalization[] NORMALIZATIONS = SmsFilterNormalization.values();
+
+    private final long mGeneration;
+    private final Bucket mWhitelist = new Bucket();
+    private final Bucket mBlacklist = new Bucket();
+    private final ArrayList<SmsFilter> mSenderWhitelist = new ArrayList<>();
+    private boolean mHasSimilarFilters;
+
+    public SmsFilterIndex(long generation) {
+        mGeneration = generation;
+    }
+
+    public long getGeneration() {
+        return mGeneration;
+    }
+
+    public void add(SmsFilter filter) {
+        SmsFilterPattern bodyPattern = filter.getBodyPattern();
+        if (bodyPattern != null && bodyPattern.getMode() == SmsFilterMode.SIMILAR) {
+            mHasSimilarFilters = true;
+        }
+        switch (filter.getAction()) {
+        case ALLOW:
+            mWhitelist.add(filter);
+            if (bodyPattern == null) {
+                mSenderWhitelist.add(filter);
+            }
+            break;
+        case BLOCK:
+            mBlacklist.add(filter);
+            break;
+        }
+    }
+
+    public void build() {
+        mWhitelist.build();
+        mBlacklist.build();
+    }
+
+    public int getWhitelistCount() {
+        return mWhitelist.size();
+    }
+
+    public int getBlacklistCount() {
+        return mBlacklist.size();
+    }
+
+    public boolean hasBodyFilters() {
+        return mWhitelist.hasBodyFilters() || mBlacklist.hasBodyFilters();
+    }
+
+    public boolean hasSimilarFilters() {
+        return mHasSimilarFilters;
+    }
+
+    /**
+     * Returns whether the result of {@link #findMatch} would be the
+     * same for any message from the same sender, so that it can be
+     * cached by sender. A rule without a body pattern matches every
+     * message from the sender; whitelist rules always win, so an
+     * allowing result is always body-independent, while a blocking
+     * result (or no match at all) is only body-independent if no rule
+     * that could have taken priority looks at the body.
+     */
+    public boolean isSenderOnlyVerdict(SmsFilter filter) {
+        if (filter == null) {
+            return !mWhitelist.hasBodyFilters() && !mBlacklist.hasBodyFilters();
+        }
+        if (filter.getBodyPattern() != null) {
+            return false;
+        }
+        switch (filter.getAction()) {
+        case ALLOW:
+            return true;
+        case BLOCK:
+            return !mWhitelist.hasBodyFilters();
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Returns the first whitelist rule that only looks at the sender
+     * and matches the message, without looking at the body at all.
+     */
+    public SmsFilter findSenderWhitelistMatch(SmsFilterContext context) {
+        for (SmsFilter filter : mSenderWhitelist) {
+            if (filter.match(context)) {
+                return filter;
+            }
+        }
+        return null;
+    }
+
+    public SmsFilter findMatch(SmsFilterContext context, boolean profile) {
+        // Whitelist rules always take priority over blacklist rules
+        SmsFilter filter = mWhitelist.findMatch(context, profile);
+        if (filter != null) {
+            return filter;
+        }
+        return mBlacklist.findMatch(context, profile);
+    }
+}
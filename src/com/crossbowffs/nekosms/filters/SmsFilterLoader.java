@@ -1,80 +1,519 @@
 package com.crossbowffs.nekosms.filters;
 
 import android.content.*;
+import android.content.res.Configuration;
 import android.database.ContentObserver;
 import android.net.Uri;
-import android.os.Handler;
+import android.os.Bundle;
+import android.util.SparseArray;
 import com.crossbowffs.nekosms.BuildConfig;
-import com.crossbowffs.nekosms.data.SmsFilterAction;
+import com.crossbowffs.nekosms.data.SmsEvent;
 import com.crossbowffs.nekosms.data.SmsFilterData;
+import com.crossbowffs.nekosms.data.SmsFilterMode;
+import com.crossbowffs.nekosms.loader.DiagnosticsLoader;
 import com.crossbowffs.nekosms.loader.FilterRuleLoader;
 import com.crossbowffs.nekosms.provider.DatabaseContract;
+import com.crossbowffs.nekosms.utils.WorkerThread;
 import com.crossbowffs.nekosms.utils.Xlog;
 import com.crossbowffs.nekosms.widget.CursorWrapper;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.crossbowffs.nekosms.provider.DatabaseContract.Diagnostics;
 
 public class SmsFilterLoader {
     private static final String NEKOSMS_PACKAGE = BuildConfig.APPLICATION_ID;
 
+    // If the rules keep changing while we load them, give up on
+    // caching them and just use the last load for the current message
+    private static final int MAX_LOAD_ATTEMPTS = 3;
+    private static final long LOAD_RETRY_DELAY_NANOS = 5L * 1000 * 1000 * 1000;
+    // Released patterns are compiled again as messages come in, so the
+    // memory budget is checked again a while after messages are handled
+    private static final long MEMORY_CHECK_DELAY_MS = 60 * 1000;
+    // Compiled patterns used within this time are kept even when over
+    // budget (unless memory is critically low), since the next message
+    // would otherwise have to compile them again while it is handled
+    private static final long REGEX_MIN_IDLE_MS = 10 * 60 * 1000;
+
     private final Context mContext;
     private final ContentObserver mContentObserver;
     private final BroadcastReceiver mBroadcastReceiver;
-    private List<SmsFilter> mCachedFilters;
+    private final ComponentCallbacks2 mComponentCallbacks;
+    private final FilterStatsTracker mStatsTracker;
+    private final SimHashIndex mBlockedFingerprints;
+    private final SenderVerdictCache mVerdictCache;
+    private final SmsEventLog mEventLog;
+    private final WorkerThread mWorker;
+    // Filters are loaded on the worker thread, so that the hook can
+    // stop waiting for a slow load while the load itself carries on.
+    // Only one load runs at a time; everyone else waits for it.
+    private final Object mLoadLock = new Object();
+    private FutureTask<SmsFilterSnapshot> mPendingLoad;
+    // A failed load is not retried for every message, so that a burst
+    // of messages does not keep waiting on a provider that is down
+    private volatile long mFailedInvalidationCount = -1;
+    private volatile long mFailedLoadTime;
+    // Likewise, filters loaded while the rules kept changing (or whose
+    // generation could not be read) are kept and used, and are only
+    // loaded again in the background once in a while until they settle
+    private volatile long mUnstableLoadTime;
+    // The current snapshot is replaced as a whole, never modified, so
+    // readers don't need to lock. Invalidating the cache only bumps the
+    // invalidation count; a snapshot is current if it was loaded after
+    // the last invalidation, so a load that raced with an invalidation
+    // is used at most once and never treated as up to date.
+    private final AtomicReference<SmsFilterSnapshot> mSnapshot = new AtomicReference<>();
+    private final AtomicLong mInvalidationCount = new AtomicLong();
+    // The phone process is persistent, so the filters are never freed
+    // by the system. To bound the memory they use, rarely used compiled
+    // regexes are released whenever the estimated size of the filters
+    // is over budget (0 for no limit), or when memory is running low.
+    // The budget is a soft limit: recently used patterns are kept, so
+    // the filters may stay over it while messages keep coming in.
+    private volatile long mMemoryBudget;
+    private int mTrimCount;
+    private final AtomicBoolean mMemoryCheckScheduled = new AtomicBoolean();
+    private final Runnable mMemoryCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mMemoryCheckScheduled.set(false);
+            checkMemory();
+        }
+    };
 
-    public SmsFilterLoader(Context context) {
+    public SmsFilterLoader(Context context, WorkerThread worker, SmsEventLog eventLog) {
         mContext = context;
+        mWorker = worker;
+        mEventLog = eventLog;
         mContentObserver = registerContentObserver();
         mBroadcastReceiver = registerBroadcastReceiver();
+        mComponentCallbacks = registerComponentCallbacks();
+        mVerdictCache = new SenderVerdictCache();
+        mStatsTracker = new FilterStatsTracker(context, worker, mVerdictCache);
+        mBlockedFingerprints = new SimHashIndex();
     }
 
+    /**
+     * Stops listening for changes and flushes any pending statistics.
+     * The worker thread is shared, so it is left running; it is up to
+     * its owner to quit it, which lets the final flush run first.
+     */
     public void close() {
         unregisterContentObserver(mContentObserver);
         unregisterBroadcastReceiver(mBroadcastReceiver);
+        unregisterComponentCallbacks(mComponentCallbacks);
+        mStatsTracker.close();
         invalidateCache();
     }
 
-    public boolean shouldBlockMessage(String sender, String body) {
-        List<SmsFilter> filters = getFilters();
-        if (filters == null) {
+    public void setProfilingEnabled(boolean enabled) {
+        mStatsTracker.setProfilingEnabled(enabled);
+    }
+
+    /**
+     * Sets the estimated number of bytes the loaded filters may use
+     * before compiled regexes start being released, or 0 for no limit.
+     * This is a soft limit: no filters are ever dropped to stay within
+     * the budget, and patterns that were used recently are not released
+     * until they have been idle for a while, so it may be exceeded.
+     */
+    public void setMemoryBudget(long bytes) {
+        if (mMemoryBudget != bytes) {
+            mMemoryBudget = bytes;
+            mWorker.getHandler().post(mMemoryCheckRunnable);
+        }
+    }
+
+    /**
+     * Waits up to the given time for the filters to be loaded, and
+     * returns them. Returns null if they are still being loaded in the
+     * background once the time is up, or right away if they are
+     * already loaded. If loading failed, returns a snapshot for which
+     * {@link SmsFilterSnapshot#isLoadFailed()} is true.
+     *
+     * This is the only method that waits for the filters; the returned
+     * snapshot must be passed to the other methods, so that all checks
+     * on a message see the same rules.
+     */
+    public SmsFilterSnapshot awaitFilters(long timeoutNanos) {
+        SmsFilterSnapshot snapshot = getCurrentSnapshot();
+        if (snapshot != null) {
+            if (isUnstableSnapshotExpired(snapshot)) {
+                startLoad();
+            }
+            return snapshot;
+        }
+        if (isLoadFailureCurrent()) {
+            return SmsFilterSnapshot.loadFailed();
+        }
+
+        // Waiting for the worker thread from itself would deadlock
+        if (mWorker.isCurrentThread()) {
+            snapshot = loadSnapshot();
+        } else {
+            try {
+                snapshot = startLoad().get(timeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                Xlog.e("Failed to load SMS filters", e);
+                snapshot = null;
+            }
+        }
+
+        if (snapshot == null) {
+            return SmsFilterSnapshot.loadFailed();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns whether any rule could block a message received on the
+     * given subscription. If not, the message does not need to be
+     * looked at at all. Returns false if the filters failed to load,
+     * since all messages are allowed in that case.
+     */
+    public boolean hasBlacklistRules(SmsFilterSnapshot snapshot, int subId) {
+        return snapshot.get(subId).getBlacklistCount() > 0;
+    }
+
+    /**
+     * Returns whether any rule for the given subscription looks at
+     * the message body. If not, {@link #shouldBlockMessage} may be
+     * called without one.
+     */
+    public boolean needsMessageBody(SmsFilterSnapshot snapshot, int subId) {
+        return snapshot.get(subId).hasBodyFilters();
+    }
+
+    /**
+     * Returns whether a whitelist rule that only looks at the sender
+     * allows the message. This is checked before blocking a message
+     * as part of a flood, so that trusted senders (e.g. a bank sending
+     * one-time codes) still get through, while rules that look at the
+     * message body, which the attacker controls, are not evaluated.
+     */
+    public boolean isWhitelistedSender(SmsFilterSnapshot snapshot, int subId, CharSequence sender) {
+        if (snapshot.isLoadFailed() || sender == null) {
+            return false;
+        }
+        SmsFilterContext context = new SmsFilterContext(sender, null, mBlockedFingerprints);
+        SmsFilter filter = snapshot.get(subId).findSenderWhitelistMatch(context);
+        if (filter == null) {
+            return false;
+        }
+        filter.recordHit();
+        Xlog.i("Allowing message (matched sender whitelist)");
+        mEventLog.record(SmsEvent.TYPE_VERDICT, SmsEvent.VERDICT_ALLOW_WHITELIST, filter.getId());
+        return true;
+    }
+
+    public boolean shouldBlockMessage(SmsFilterSnapshot snapshot, int subId, CharSequence sender, CharSequence body) {
+        if (snapshot.isLoadFailed()) {
             Xlog.i("Allowing message (filters failed to load)");
+            mEventLog.record(SmsEvent.TYPE_VERDICT, SmsEvent.VERDICT_ALLOW_LOAD_FAILED, -1);
             return false;
         }
+        SmsFilterIndex filters = snapshot.get(subId);
+        if (mMemoryCheckScheduled.compareAndSet(false, true)) {
+            mWorker.getHandler().postDelayed(mMemoryCheckRunnable, MEMORY_CHECK_DELAY_MS);
+        }
+
+        boolean profile = mStatsTracker.isProfilingEnabled();
+        if (profile) {
+            mStatsTracker.onTimingsRecorded();
+        }
 
-        // Filters are already sorted whitelist first,
-        // so we can just return on the first match.
-        for (SmsFilter filter : filters) {
-            if (filter.match(sender, body)) {
-                switch (filter.getAction()) {
-                case ALLOW:
-                    Xlog.i("Allowing message (matched whitelist)");
-                    return false;
-                case BLOCK:
-                    Xlog.i("Blocking message (matched blacklist)");
-                    return true;
+        SmsFilterContext context = new SmsFilterContext(sender, body, mBlockedFingerprints);
+        SmsFilter filter = findMatch(filters, context, subId, sender, profile);
+        if (filter != null) {
+            filter.recordHit();
+            switch (filter.getAction()) {
+            case ALLOW:
+                Xlog.i("Allowing message (matched whitelist)");
+                mEventLog.record(SmsEvent.TYPE_VERDICT, SmsEvent.VERDICT_ALLOW_WHITELIST, filter.getId());
+                return false;
+            case BLOCK:
+                Xlog.i("Blocking message (matched blacklist)");
+                mEventLog.record(SmsEvent.TYPE_VERDICT, SmsEvent.VERDICT_BLOCK_BLACKLIST, filter.getId());
+                // Only worth fingerprinting if some rule will look it up.
+                // Messages blocked for being similar are not added, or
+                // each one would widen the net around the original, and
+                // neither are bodies with nothing to fingerprint.
+                if (filters.hasSimilarFilters() && !isSimilarFilter(filter)) {
+                    long fingerprint = context.getBodySimHash();
+                    if (fingerprint != 0) {
+                        mBlockedFingerprints.add(fingerprint);
+                    }
                 }
+                return true;
             }
         }
 
         Xlog.i("Allowing message (did not match any rules)");
+        mEventLog.record(SmsEvent.TYPE_VERDICT, SmsEvent.VERDICT_ALLOW_NO_MATCH, -1);
         return false;
     }
 
-    private List<SmsFilter> getFilters() {
-        List<SmsFilter> filters = mCachedFilters;
-        if (filters == null) {
-            Xlog.i("Cached SMS filters dirty, loading from database");
-            filters = mCachedFilters = loadFilters();
+    private static boolean isSimilarFilter(SmsFilter filter) {
+        SmsFilterPattern bodyPattern = filter.getBodyPattern();
+        return bodyPattern != null && bodyPattern.getMode() == SmsFilterMode.SIMILAR;
+    }
+
+    private SmsFilter findMatch(SmsFilterIndex filters, SmsFilterContext context, int subId, CharSequence sender, boolean profile) {
+        // Unstable snapshots don't identify a version of the rules,
+        // so their results can't be shared with other snapshots
+        if (sender == null || !isStableGeneration(filters.getGeneration())) {
+            return filters.findMatch(context, profile);
+        }
+
+        // Different subscriptions may be using different rules
+        String senderKey = subId + ":" + sender;
+        SenderVerdictCache.Verdict verdict = mVerdictCache.get(senderKey, filters.getGeneration());
+        if (verdict != null) {
+            Xlog.v("Using cached verdict for sender");
+            mStatsTracker.onVerdictCacheUsed();
+            return verdict.getFilter();
+        }
+
+        SmsFilter filter = filters.findMatch(context, profile);
+        if (filters.isSenderOnlyVerdict(filter)) {
+            mVerdictCache.put(senderKey, filters.getGeneration(), filter);
+        } else {
+            mVerdictCache.onUncacheable();
+        }
+        mStatsTracker.onVerdictCacheUsed();
+        return filter;
+    }
+
+    private SmsFilterSnapshot getCurrentSnapshot() {
+        SmsFilterSnapshot snapshot = mSnapshot.get();
+        if (snapshot != null && snapshot.getInvalidationCount() == mInvalidationCount.get()) {
+            return snapshot;
+        }
+        return null;
+    }
+
+    private boolean isUnstableSnapshotExpired(SmsFilterSnapshot snapshot) {
+        return !isStableGeneration(snapshot.getGeneration()) &&
+            System.nanoTime() - mUnstableLoadTime >= LOAD_RETRY_DELAY_NANOS;
+    }
+
+    private boolean isLoadFailureCurrent() {
+        return mFailedInvalidationCount == mInvalidationCount.get() &&
+            System.nanoTime() - mFailedLoadTime < LOAD_RETRY_DELAY_NANOS;
+    }
+
+    private FutureTask<SmsFilterSnapshot> startLoad() {
+        synchronized (mLoadLock) {
+            if (mPendingLoad == null) {
+                mPendingLoad = new FutureTask<>(new Callable<SmsFilterSnapshot>() {
+                    @Override
+                    public SmsFilterSnapshot call() {
+                        try {
+                            return loadSnapshot();
+                        } finally {
+                            synchronized (mLoadLock) {
+                                mPendingLoad = null;
+                            }
+                        }
+                    }
+                });
+                mWorker.getExecutor().execute(mPendingLoad);
+            }
+            return mPendingLoad;
+        }
+    }
+
+    private SmsFilterSnapshot loadSnapshot() {
+        long invalidationCount = mInvalidationCount.get();
+        SmsFilterSnapshot snapshot = mSnapshot.get();
+        if (snapshot != null && snapshot.getInvalidationCount() == invalidationCount && !isUnstableSnapshotExpired(snapshot)) {
+            return snapshot;
+        }
+
+        Xlog.i("Cached SMS filters dirty, loading from database");
+        SmsFilterSnapshot newSnapshot = null;
+        for (int attempt = 0; attempt < MAX_LOAD_ATTEMPTS; ++attempt) {
+            try {
+                newSnapshot = loadFilters(invalidationCount);
+            } catch (Exception e) {
+                Xlog.e("Failed to load SMS filters", e);
+                newSnapshot = null;
+            }
+            if (newSnapshot == null) {
+                mEventLog.record(SmsEvent.TYPE_ERROR, SmsEvent.ERROR_FILTER_LOAD, 0);
+                mFailedLoadTime = System.nanoTime();
+                mFailedInvalidationCount = invalidationCount;
+                return null;
+            }
+            if (isStableGeneration(newSnapshot.getGeneration())) {
+                break;
+            }
+            Xlog.w("SMS filters changed while loading");
+        }
+
+        if (!isStableGeneration(newSnapshot.getGeneration())) {
+            Xlog.w("SMS filters did not settle, using them until the next reload");
+            mUnstableLoadTime = System.nanoTime();
+        }
+        // Fingerprints are only meaningful to the rules that blocked
+        // them, so they are dropped whenever the rules change
+        if (snapshot == null || snapshot.getGeneration() != newSnapshot.getGeneration()) {
+            mBlockedFingerprints.clear();
+        }
+        mSnapshot.set(newSnapshot);
+        enforceMemoryBudget(newSnapshot);
+        // Exporting needs a call to the provider, which the
+        // hook might be waiting on this load for
+        mWorker.getHandler().post(mMemoryCheckRunnable);
+        return newSnapshot;
+    }
+
+    private void enforceMemoryBudget(SmsFilterSnapshot snapshot) {
+        long budget = mMemoryBudget;
+        long size = snapshot.estimateSize();
+        if (budget <= 0 || size <= budget) {
+            return;
+        }
+
+        long freed = snapshot.releaseRegexes(size - budget, REGEX_MIN_IDLE_MS);
+        Xlog.i("SMS filters over memory budget (%d/%d bytes), released %d bytes of compiled patterns", size, budget, freed);
+        if (size - freed <= budget) {
+            return;
+        }
+        if (snapshot.getCompiledRegexCount() > 0) {
+            // Try again once the patterns that were kept have gone idle
+            Xlog.i("SMS filters still over memory budget, keeping recently used patterns");
+            if (mMemoryCheckScheduled.compareAndSet(false, true)) {
+                mWorker.getHandler().postDelayed(mMemoryCheckRunnable, REGEX_MIN_IDLE_MS);
+            }
+        } else {
+            Xlog.w("SMS filters still over memory budget with no compiled patterns left");
+        }
+    }
+
+    private void checkMemory() {
+        SmsFilterSnapshot snapshot = mSnapshot.get();
+        if (snapshot == null) {
+            return;
+        }
+        enforceMemoryBudget(snapshot);
+        exportMemoryStats(snapshot);
+    }
+
+    private void trimMemory(int level) {
+        SmsFilterSnapshot snapshot = mSnapshot.get();
+        if (snapshot == null) {
+            return;
+        }
+
+        // UI_HIDDEN (which lies between these levels) only means that
+        // some UI in the phone process went away, so it is ignored
+        if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL ||
+            level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            Xlog.i("Memory critically low, releasing all compiled SMS filter patterns");
+            snapshot.releaseRegexes(Long.MAX_VALUE, 0);
+            mVerdictCache.clear();
+        } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            Xlog.i("Memory running low, releasing idle SMS filter patterns");
+            snapshot.releaseRegexes(snapshot.estimateSize() / 2, REGEX_MIN_IDLE_MS);
+        } else {
+            return;
+        }
+        mTrimCount++;
+        exportMemoryStats(snapshot);
+    }
+
+    private void exportMemoryStats(SmsFilterSnapshot snapshot) {
+        long size = snapshot.estimateSize();
+        Xlog.i("Estimated size of SMS filters: %d bytes", size);
+
+        Bundle stats = new Bundle(6);
+        stats.putLong(Diagnostics.EXTRA_ESTIMATED_BYTES, size);
+        stats.putLong(Diagnostics.EXTRA_BUDGET_BYTES, mMemoryBudget);
+        stats.putInt(Diagnostics.EXTRA_FILTER_COUNT, snapshot.getFilterCount());
+        stats.putInt(Diagnostics.EXTRA_REGEX_COUNT, snapshot.getRegexCount());
+        stats.putInt(Diagnostics.EXTRA_COMPILED_REGEX_COUNT, snapshot.getCompiledRegexCount());
+        stats.putInt(Diagnostics.EXTRA_TRIM_COUNT, mTrimCount);
+        try {
+            DiagnosticsLoader.put(mContext, Diagnostics.KEY_FILTER_MEMORY, stats);
+        } catch (Exception e) {
+            Xlog.e("Failed to export SMS filter memory stats", e);
         }
-        return filters;
     }
 
     private void invalidateCache() {
-        mCachedFilters = null;
+        mInvalidationCount.incrementAndGet();
     }
 
-    private List<SmsFilter> loadFilters() {
+    private static boolean isStableGeneration(long generation) {
+        // The provider generation is odd while a write is in progress,
+        // and -1 if it could not be read
+        return (generation & 1) == 0;
+    }
+
+    private long getGeneration() {
+        try {
+            return FilterRuleLoader.get().getGeneration(mContext);
+        } catch (Exception e) {
+            Xlog.e("Failed to get SMS filter generation", e);
+            return -1;
+        }
+    }
+
+    private SmsFilterSnapshot loadFilters(long invalidationCount) {
+        // Only a snapshot that matches a version of the rules can
+        // be reused if the rules turn out to be unchanged
+        SmsFilterSnapshot current = mSnapshot.get();
+        long knownGeneration = -1;
+        if (current != null && isStableGeneration(current.getGeneration())) {
+            knownGeneration = current.getGeneration();
+        }
+
+        FilterRuleLoader.Snapshot snapshot;
+        try {
+            snapshot = FilterRuleLoader.get().querySnapshot(mContext, knownGeneration);
+        } catch (Exception e) {
+            Xlog.e("Failed to fetch SMS filter snapshot", e);
+            snapshot = null;
+        }
+        if (snapshot == null) {
+            Xlog.w("SMS filter snapshot unavailable, querying filters");
+            return queryFilters(invalidationCount);
+        }
+
+        List<SmsFilterData> filterDatas = snapshot.getFilters();
+        if (filterDatas == null) {
+            Xlog.i("SMS filters unchanged since last load");
+            return current.withInvalidationCount(invalidationCount);
+        }
+
+        Xlog.i("Loaded %d SMS filters from snapshot", filterDatas.size());
+        ArrayList<SmsFilter> globalFilters = new ArrayList<>(filterDatas.size());
+        SparseArray<List<SmsFilter>> scopedFilters = new SparseArray<>();
+        HashSet<Long> filterIds = new HashSet<>(filterDatas.size());
+        for (SmsFilterData data : filterDatas) {
+            addFilter(data, globalFilters, scopedFilters, filterIds);
+        }
+        mStatsTracker.retainStats(filterIds);
+        return new SmsFilterSnapshot(snapshot.getGeneration(), invalidationCount, globalFilters, scopedFilters);
+    }
+
+    private SmsFilterSnapshot queryFilters(long invalidationCount) {
+        // The generation is read on both sides of the query; if it did
+        // not change, no write to the rules overlapped with the query
+        long generation = getGeneration();
         try (CursorWrapper<SmsFilterData> filterCursor = FilterRuleLoader.get().queryAll(mContext)) {
             if (filterCursor == null) {
                 // This might occur if the app has been uninstalled (removing the DB),
@@ -87,43 +526,56 @@ public class SmsFilterLoader {
             int count = filterCursor.getCount();
             Xlog.i("filterCursor.getCount() = %d", count);
 
-            // It's better to just over-reserve since we expect most
-            // rules to go into the blacklist, but all rules will
-            // be merged into the whitelist list in the end (with
-            // whitelist rules coming first).
-            ArrayList<SmsFilter> whitelist = new ArrayList<>(count);
-            ArrayList<SmsFilter> blacklist = new ArrayList<>(count);
-
+            ArrayList<SmsFilter> globalFilters = new ArrayList<>(count);
+            SparseArray<List<SmsFilter>> scopedFilters = new SparseArray<>();
+            HashSet<Long> filterIds = new HashSet<>(count);
             SmsFilterData data = new SmsFilterData();
             while (filterCursor.moveToNext()) {
-                SmsFilter filter;
                 try {
                     data = filterCursor.get(data);
-                    filter = new SmsFilter(data);
                 } catch (Exception e) {
                     Xlog.e("Failed to load SMS filter", e);
                     continue;
                 }
+                addFilter(data, globalFilters, scopedFilters, filterIds);
+            }
 
-                if (data.getAction() == SmsFilterAction.BLOCK) {
-                    blacklist.add(filter);
-                } else if (data.getAction() == SmsFilterAction.ALLOW) {
-                    whitelist.add(filter);
-                }
+            mStatsTracker.retainStats(filterIds);
+            if (getGeneration() != generation) {
+                generation = -1;
             }
+            return new SmsFilterSnapshot(generation, invalidationCount, globalFilters, scopedFilters);
+        }
+    }
 
-            Xlog.i("Loaded %d blacklist filters", blacklist.size());
-            Xlog.i("Loaded %d whitelist filters", whitelist.size());
-            whitelist.addAll(blacklist);
-            whitelist.trimToSize();
-            return whitelist;
+    private void addFilter(SmsFilterData data, List<SmsFilter> globalFilters, SparseArray<List<SmsFilter>> scopedFilters, HashSet<Long> filterIds) {
+        SmsFilter filter;
+        try {
+            filter = new SmsFilter(data);
+        } catch (Exception e) {
+            Xlog.e("Failed to load SMS filter", e);
+            return;
+        }
+
+        filter.setStats(mStatsTracker.getStats(data.getId()));
+        filterIds.add(data.getId());
+        int subId = data.getSubId();
+        if (subId == SmsFilterData.ALL_SUBSCRIPTIONS) {
+            globalFilters.add(filter);
+        } else {
+            List<SmsFilter> filters = scopedFilters.get(subId);
+            if (filters == null) {
+                filters = new ArrayList<>();
+                scopedFilters.put(subId, filters);
+            }
+            filters.add(filter);
         }
     }
 
     private ContentObserver registerContentObserver() {
         Xlog.i("Registering SMS filter content observer");
 
-        ContentObserver contentObserver = new ContentObserver(new Handler()) {
+        ContentObserver contentObserver = new ContentObserver(mWorker.getHandler()) {
             @Override
             public void onChange(boolean selfChange) {
                 Xlog.i("SMS filter database updated, marking cache as dirty");
@@ -179,10 +631,39 @@ public class SmsFilterLoader {
         filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
         filter.addAction(Intent.ACTION_PACKAGE_DATA_CLEARED);
         filter.addDataScheme("package");
-        mContext.registerReceiver(receiver, filter);
+        mContext.registerReceiver(receiver, filter, null, mWorker.getHandler());
         return receiver;
     }
 
+    private ComponentCallbacks2 registerComponentCallbacks() {
+        Xlog.i("Registering memory pressure callbacks");
+
+        // Called on the main thread, so the actual work is done on the
+        // worker thread, where it can't race with a load or a check
+        ComponentCallbacks2 callbacks = new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(final int level) {
+                mWorker.getHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        trimMemory(level);
+                    }
+                });
+            }
+
+            @Override
+            public void onLowMemory() {
+                onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) { }
+        };
+
+        mContext.registerComponentCallbacks(callbacks);
+        return callbacks;
+    }
+
     private void unregisterContentObserver(ContentObserver observer) {
         mContext.getContentResolver().unregisterContentObserver(observer);
     }
@@ -190,4 +671,8 @@ public class SmsFilterLoader {
     private void unregisterBroadcastReceiver(BroadcastReceiver receiver) {
         mContext.unregisterReceiver(receiver);
     }
+
+    private void unregisterComponentCallbacks(ComponentCallbacks2 callbacks) {
+        mContext.unregisterComponentCallbacks(callbacks);
+    }
 }
@@ -2,20 +2,29 @@ package com.crossbowffs.nekosms.filters;
 
 import com.crossbowffs.nekosms.data.SmsFilterField;
 import com.crossbowffs.nekosms.data.SmsFilterMode;
+import com.crossbowffs.nekosms.data.SmsFilterNormalization;
 import com.crossbowffs.nekosms.data.SmsFilterPatternData;
 import com.crossbowffs.nekosms.utils.Xlog;
 
 /* package */ abstract class SmsFilterPattern {
+    // Typical sizes on ART, used for estimating how much memory the
+    // loaded rules take up. Exact sizes vary between devices.
+    protected static final int OBJECT_SIZE = 32;
+    protected static final int STRING_SIZE = 40;
+    protected static final int ARRAY_SIZE = 16;
+
     private final SmsFilterField mField;
     private final SmsFilterMode mMode;
     private final String mPattern;
     private final boolean mCaseSensitive;
+    private final SmsFilterNormalization mNormalization;
 
     public SmsFilterPattern(SmsFilterPatternData data) {
         mField = data.getField();
         mMode = data.getMode();
         mPattern = data.getPattern();
         mCaseSensitive = data.isCaseSensitive();
+        mNormalization = data.getNormalization();
     }
 
     public SmsFilterField getField() {
@@ -34,12 +43,45 @@ import com.crossbowffs.nekosms.utils.Xlog;
         return mCaseSensitive;
     }
 
+    public SmsFilterNormalization getNormalization() {
+        return mNormalization;
+    }
+
+    protected String getNormalizedPattern() {
+        return SmsTextNormalizer.normalizePattern(mPattern, mNormalization);
+    }
+
+    protected CharSequence getText(SmsFilterContext context) {
+        return context.getText(mField, mNormalization);
+    }
+
+    /**
+     * Returns a rough estimate of the memory held by this pattern,
+     * in bytes. There is no way to measure the retained size of an
+     * object at runtime, so this only adds up the parts that grow
+     * with the pattern (strings and compiled state).
+     */
+    public int estimateSize() {
+        return OBJECT_SIZE + estimateStringSize(mPattern);
+    }
+
+    protected static int estimateStringSize(String value) {
+        if (value == null) {
+            return 0;
+        }
+        return STRING_SIZE + 2 * value.length();
+    }
+
     public void printToLog() {
+        if (!Xlog.VERBOSE) {
+            return;
+        }
         Xlog.v("Field: %s", getField().name());
         Xlog.v("Mode: %s", getMode().name());
         Xlog.v("Pattern: %s", getPattern());
         Xlog.v("Case sensitive: %s", isCaseSensitive());
+        Xlog.v("Normalization: %s", getNormalization().name());
     }
 
-    public abstract boolean match(String sender, String body);
+    public abstract boolean match(SmsFilterContext context);
 }
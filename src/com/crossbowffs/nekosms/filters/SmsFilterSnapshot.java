@@ -0,0 +1,219 @@
+package com.crossbowffs.nekosms.filters;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+import com.crossbowffs.nekosms.utils.Xlog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable set of loaded filters, split by the SIM card
+ * (subscription) they apply to. Each subscription with its own rules
+ * gets a separate index containing the global rules plus its own, so
+ * a message is only ever tested against rules that can apply to it.
+ * Subscriptions without any rules of their own share the global index.
+ *
+ * A snapshot is stamped with the generation of the rules it was
+ * loaded from, as reported by the provider, and with the loader's
+ * invalidation count at the time the load started. Neither changes
+ * after construction, so a snapshot can be shared between threads
+ * without locking. The only exception is that compiled regular
+ * expressions may be released to save memory, which does not
+ * change the result of matching a message.
+ *
+ * The hook reads one snapshot per message and uses it for every
+ * check on that message, so they all see the same rules even if the
+ * rules change (and are reloaded) while the message is being handled.
+ */
+public class SmsFilterSnapshot {
+    // Rough cost of a reference to a filter from an index
+    private static final int INDEX_ENTRY_SIZE = 32;
+
+    private final long mGeneration;
+    private final long mInvalidationCount;
+    private final SmsFilterIndex mGlobalFilters;
+    private final SparseArray<SmsFilterIndex> mScopedFilters;
+    private final List<SmsFilter> mFilters;
+    private final List<RegexFilterPattern> mRegexPatterns;
+    private final long mIndexSize;
+    private final boolean mLoadFailed;
+
+    public SmsFilterSnapshot(long generation, long invalidationCount, List<SmsFilter> globalFilters, SparseArray<List<SmsFilter>> scopedFilters) {
+        mGeneration = generation;
+        mInvalidationCount = invalidationCount;
+        mGlobalFilters = buildIndex(generation, globalFilters, null);
+        Xlog.i("Loaded %d blacklist filters", mGlobalFilters.getBlacklistCount());
+        Xlog.i("Loaded %d whitelist filters", mGlobalFilters.getWhitelistCount());
+
+        mFilters = new ArrayList<>(globalFilters);
+        long indexEntries = globalFilters.size();
+        mScopedFilters = new SparseArray<>(scopedFilters.size());
+        for (int i = 0; i < scopedFilters.size(); ++i) {
+            int subId = scopedFilters.keyAt(i);
+            List<SmsFilter> filters = scopedFilters.valueAt(i);
+            Xlog.i("Loaded %d filters for subscription %d", filters.size(), subId);
+            mScopedFilters.put(subId, buildIndex(generation, globalFilters, filters));
+            mFilters.addAll(filters);
+            indexEntries += globalFilters.size() + filters.size();
+        }
+        mIndexSize = indexEntries * INDEX_ENTRY_SIZE;
+        mLoadFailed = false;
+
+        mRegexPatterns = new ArrayList<>();
+        for (SmsFilter filter : mFilters) {
+            addRegexPattern(filter.getSenderPattern());
+            addRegexPattern(filter.getBodyPattern());
+        }
+    }
+
+    private SmsFilterSnapshot(SmsFilterSnapshot other, long invalidationCount) {
+        mGeneration = other.mGeneration;
+        mInvalidationCount = invalidationCount;
+        mGlobalFilters = other.mGlobalFilters;
+        mScopedFilters = other.mScopedFilters;
+        mFilters = other.mFilters;
+        mRegexPatterns = other.mRegexPatterns;
+        mIndexSize = other.mIndexSize;
+        mLoadFailed = other.mLoadFailed;
+    }
+
+    private SmsFilterSnapshot() {
+        mGeneration = -1;
+        mInvalidationCount = -1;
+        mGlobalFilters = buildIndex(-1, Collections.<SmsFilter>emptyList(), null);
+        mScopedFilters = new SparseArray<>(0);
+        mFilters = Collections.emptyList();
+        mRegexPatterns = Collections.emptyList();
+        mIndexSize = 0;
+        mLoadFailed = true;
+    }
+
+    /**
+     * Returns an empty snapshot that stands in for filters that could
+     * not be loaded, which lets all messages through.
+     */
+    public static SmsFilterSnapshot loadFailed() {
+        return new SmsFilterSnapshot();
+    }
+
+    public boolean isLoadFailed() {
+        return mLoadFailed;
+    }
+
+    private void addRegexPattern(SmsFilterPattern pattern) {
+        if (pattern instanceof RegexFilterPattern) {
+            mRegexPatterns.add((RegexFilterPattern)pattern);
+        }
+    }
+
+    /**
+     * Returns a snapshot with the same filters, stamped with a new
+     * invalidation count. Used when the rules turn out to be unchanged
+     * after an invalidation, so they don't need to be compiled again.
+     */
+    public SmsFilterSnapshot withInvalidationCount(long invalidationCount) {
+        return new SmsFilterSnapshot(this, invalidationCount);
+    }
+
+    private static SmsFilterIndex buildIndex(long generation, List<SmsFilter> globalFilters, List<SmsFilter> scopedFilters) {
+        SmsFilterIndex index = new SmsFilterIndex(generation);
+        for (SmsFilter filter : globalFilters) {
+            index.add(filter);
+        }
+        if (scopedFilters != null) {
+            for (SmsFilter filter : scopedFilters) {
+                index.add(filter);
+            }
+        }
+        index.build();
+        return index;
+    }
+
+    public long getGeneration() {
+        return mGeneration;
+    }
+
+    public long getInvalidationCount() {
+        return mInvalidationCount;
+    }
+
+    public SmsFilterIndex get(int subId) {
+        SmsFilterIndex filters = mScopedFilters.get(subId);
+        if (filters == null) {
+            return mGlobalFilters;
+        }
+        return filters;
+    }
+
+    public int getFilterCount() {
+        return mFilters.size();
+    }
+
+    public int getRegexCount() {
+        return mRegexPatterns.size();
+    }
+
+    public int getCompiledRegexCount() {
+        int count = 0;
+        for (RegexFilterPattern pattern : mRegexPatterns) {
+            if (pattern.isCompiled()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns a rough estimate of the memory held by the filters
+     * in this snapshot, in bytes. This changes as compiled regular
+     * expressions are released and compiled again.
+     */
+    public long estimateSize() {
+        long size = mIndexSize;
+        for (SmsFilter filter : mFilters) {
+            size += filter.estimateSize();
+        }
+        return size;
+    }
+
+    /**
+     * Releases compiled regular expressions that have not been used
+     * for at least the given time, least recently used first, until
+     * at least the given number of bytes have been freed or none are
+     * left. No filters are removed; a released pattern is compiled
+     * again the next time it is needed. Returns the estimated number
+     * of bytes freed.
+     *
+     * Rules are evaluated one after another, so a pattern that was
+     * used for the last message will most likely be used for the next
+     * one too, and releasing it would only move the cost of compiling
+     * it onto the thread handling that message.
+     */
+    public long releaseRegexes(long bytes, long minIdleMillis) {
+        long cutoff = SystemClock.uptimeMillis() - minIdleMillis;
+        ArrayList<RegexFilterPattern> compiled = new ArrayList<>(mRegexPatterns.size());
+        for (RegexFilterPattern pattern : mRegexPatterns) {
+            if (pattern.isCompiled() && pattern.getLastUseTime() <= cutoff) {
+                compiled.add(pattern);
+            }
+        }
+        Collections.sort(compiled, new Comparator<RegexFilterPattern>() {
+            @Override
+            public int compare(RegexFilterPattern lhs, RegexFilterPattern rhs) {
+                return Long.compare(lhs.getLastUseTime(), rhs.getLastUseTime());
+            }
+        });
+
+        long freed = 0;
+        for (RegexFilterPattern pattern : compiled) {
+            if (freed >= bytes) {
+                break;
+            }
+            freed += pattern.release();
+        }
+        return freed;
+    }
+}
@@ -0,0 +1,51 @@
+package com.crossbowffs.nekosms.filters;
+
+import com.crossbowffs.nekosms.data.SmsFilterNormalization;
+import com.crossbowffs.nekosms.utils.ConfusableSkeleton;
+
+import java.text.Normalizer;
+import java.util.Locale;
+
+/**
+ * Applies the normalization selected for a pattern. Message text is
+ * always NFC-normalized by the Xposed module before evaluation, so
+ * {@link #normalizeText(CharSequence, SmsFilterNormalization)} only
+ * has to apply whatever comes on top of that.
+ */
+/* package */ final class SmsTextNormalizer {
+    private SmsTextNormalizer() { }
+
+    public static CharSequence normalizeText(CharSequence nfcText, SmsFilterNormalization normalization) {
+        switch (normalization) {
+        case NFC:
+            return nfcText;
+        case NFKC:
+            return normalizeNfkc(nfcText);
+        case NFKC_CASEFOLD:
+            // Approximation of NFKC_Casefold, which Java does not
+            // provide; this misses the few full case foldings that
+            // change the length of the string (e.g. the German eszett)
+            return normalizeNfkc(nfcText).toString().toLowerCase(Locale.ROOT);
+        case SKELETON:
+            return ConfusableSkeleton.skeleton(nfcText);
+        default:
+            throw new AssertionError("Invalid normalization: " + normalization);
+        }
+    }
+
+    private static CharSequence normalizeNfkc(CharSequence text) {
+        // Most messages have no compatibility characters at all,
+        // so avoid copying the text in the common case
+        if (Normalizer.isNormalized(text, Normalizer.Form.NFKC)) {
+            return text;
+        }
+        return Normalizer.normalize(text, Normalizer.Form.NFKC);
+    }
+
+    public static String normalizePattern(String pattern, SmsFilterNormalization normalization) {
+        // Make sure the pattern is normalized, since Java does not
+        // perform Unicode normalization when comparing strings
+        String nfcPattern = Normalizer.normalize(pattern, Normalizer.Form.NFC);
+        return normalizeText(nfcPattern, normalization).toString();
+    }
+}
@@ -3,35 +3,34 @@ package com.crossbowffs.nekosms.filters;
 import com.crossbowffs.nekosms.data.SmsFilterPatternData;
 import com.crossbowffs.nekosms.utils.StringUtils;
 
-import java.text.Normalizer;
-
 /* package */ class StringFilterPattern extends SmsFilterPattern {
     private final String mNormalizedPattern;
 
     public StringFilterPattern(SmsFilterPatternData data) {
         super(data);
 
-        // Make sure the pattern is normalized, since Java does not
-        // perform Unicode normalization when comparing strings.
-        // The sender and body values are normalized once in the
-        // Xposed module to improve performance.
-        mNormalizedPattern = Normalizer.normalize(getPattern(), Normalizer.Form.NFC);
+        // The pattern is normalized once here; the sender and body
+        // values are normalized at most once per message by the context.
+        mNormalizedPattern = super.getNormalizedPattern();
     }
 
     @Override
-    public boolean match(String sender, String body) {
-        String testString;
-        switch (getField()) {
-        case SENDER:
-            testString = sender;
-            break;
-        case BODY:
-            testString = body;
-            break;
-        default:
-            throw new AssertionError("Invalid field: " + getField());
+    public String getNormalizedPattern() {
+        return mNormalizedPattern;
+    }
+
+    @Override
+    public int estimateSize() {
+        int size = super.estimateSize();
+        if (mNormalizedPattern != getPattern()) {
+            size += estimateStringSize(mNormalizedPattern);
         }
+        return size;
+    }
 
+    @Override
+    public boolean match(SmsFilterContext context) {
+        CharSequence testString = getText(context);
         boolean ignoreCase = !isCaseSensitive();
         switch (getMode()) {
         case CONTAINS:
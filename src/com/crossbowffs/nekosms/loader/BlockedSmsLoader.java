@@ -1,14 +1,22 @@
 package com.crossbowffs.nekosms.loader;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 import com.crossbowffs.nekosms.data.SmsMessageData;
 import com.crossbowffs.nekosms.utils.MapUtils;
 import com.crossbowffs.nekosms.widget.AutoContentLoader;
+import com.crossbowffs.nekosms.provider.DatabaseContract;
 import com.crossbowffs.nekosms.widget.CursorWrapper;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static com.crossbowffs.nekosms.provider.DatabaseContract.BlockedMessages;
 
 public class BlockedSmsLoader extends AutoContentLoader<SmsMessageData> {
@@ -81,10 +89,44 @@ public class BlockedSmsLoader extends AutoContentLoader<SmsMessageData> {
         return values;
     }
 
+    public Uri[] insertAll(Context context, List<SmsMessageData> messages) {
+        // All messages are inserted in one transaction and one IPC
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>(messages.size());
+        for (SmsMessageData message : messages) {
+            ops.add(ContentProviderOperation.newInsert(BlockedMessages.CONTENT_URI).withValues(serialize(message)).build());
+        }
+        ContentProviderResult[] results;
+        try {
+            results = context.getContentResolver().applyBatch(DatabaseContract.AUTHORITY, ops);
+        } catch (RemoteException | OperationApplicationException e) {
+            throw new DatabaseException("Failed to insert blocked messages: " + e);
+        }
+        Uri[] uris = new Uri[results.length];
+        for (int i = 0; i < results.length; ++i) {
+            uris[i] = results[i].uri;
+        }
+        return uris;
+    }
+
     public CursorWrapper<SmsMessageData> queryUnseen(Context context) {
         return queryAll(context, BlockedMessages.SEEN + "=?", new String[] {"0"}, BlockedMessages.TIME_SENT + " DESC");
     }
 
+    public int countUnseen(Context context) {
+        // Only the count is read, so none of the message bodies
+        // need to be copied across processes
+        Cursor cursor = context.getContentResolver().query(BlockedMessages.CONTENT_URI,
+            new String[] {"COUNT(*)"}, BlockedMessages.SEEN + "=?", new String[] {"0"}, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
     public SmsMessageData queryAndDelete(Context context, long messageId) {
         return queryAndDelete(context, convertIdToUri(messageId));
     }
@@ -120,6 +162,18 @@ public class BlockedSmsLoader extends AutoContentLoader<SmsMessageData> {
         return update(context, messageUri, values);
     }
 
+    public void setSeenStatus(Context context, Uri[] messageUris, boolean seen) {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>(messageUris.length);
+        for (Uri messageUri : messageUris) {
+            ops.add(ContentProviderOperation.newUpdate(messageUri).withValue(BlockedMessages.SEEN, seen ? 1 : 0).build());
+        }
+        try {
+            context.getContentResolver().applyBatch(DatabaseContract.AUTHORITY, ops);
+        } catch (RemoteException | OperationApplicationException e) {
+            throw new DatabaseException("Failed to update blocked messages: " + e);
+        }
+    }
+
     public void markAllSeen(Context context) {
         ContentValues values = MapUtils.contentValuesForSize(1);
         values.put(BlockedMessages.SEEN, 1);
@@ -0,0 +1,22 @@
+package com.crossbowffs.nekosms.loader;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Bundle;
+import com.crossbowffs.nekosms.provider.DatabaseContract;
+
+import static com.crossbowffs.nekosms.provider.DatabaseContract.Diagnostics;
+
+public final class DiagnosticsLoader {
+    private DiagnosticsLoader() { }
+
+    public static void put(Context context, String key, Bundle data) {
+        ContentResolver contentResolver = context.getContentResolver();
+        contentResolver.call(DatabaseContract.CONTENT_URI, Diagnostics.METHOD_PUT, key, data);
+    }
+
+    public static Bundle get(Context context, String key) {
+        ContentResolver contentResolver = context.getContentResolver();
+        return contentResolver.call(DatabaseContract.CONTENT_URI, Diagnostics.METHOD_GET, key, null);
+    }
+}
@@ -1,27 +1,62 @@
 package com.crossbowffs.nekosms.loader;
 
 import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.RemoteException;
 import com.crossbowffs.nekosms.data.SmsFilterAction;
 import com.crossbowffs.nekosms.data.SmsFilterData;
 import com.crossbowffs.nekosms.data.SmsFilterMode;
+import com.crossbowffs.nekosms.data.SmsFilterNormalization;
 import com.crossbowffs.nekosms.data.SmsFilterPatternData;
 import com.crossbowffs.nekosms.provider.DatabaseContract;
 import com.crossbowffs.nekosms.utils.MapUtils;
 import com.crossbowffs.nekosms.utils.Xlog;
 import com.crossbowffs.nekosms.widget.AutoContentLoader;
+import com.crossbowffs.nekosms.widget.CursorWrapper;
 
+import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
 
 import static com.crossbowffs.nekosms.provider.DatabaseContract.FilterRules;
 
 public class FilterRuleLoader extends AutoContentLoader<SmsFilterData> {
+    // Must be bumped whenever the snapshot encoding changes, since the
+    // app may be updated while the phone process is still running the
+    // old version of the module
+    public static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * Rule set returned by {@link #querySnapshot}.
+     */
+    public static class Snapshot {
+        private final long mGeneration;
+        private final List<SmsFilterData> mFilters;
+
+        private Snapshot(long generation, List<SmsFilterData> filters) {
+            mGeneration = generation;
+            mFilters = filters;
+        }
+
+        public long getGeneration() {
+            return mGeneration;
+        }
+
+        /**
+         * Returns the rules, or null if they have not changed since
+         * the generation passed to {@link #querySnapshot}.
+         */
+        public List<SmsFilterData> getFilters() {
+            return mFilters;
+        }
+    }
+
     private static FilterRuleLoader sInstance;
 
     public static FilterRuleLoader get() {
@@ -54,6 +89,10 @@ public class FilterRuleLoader extends AutoContentLoader<SmsFilterData> {
         case FilterRules.ACTION:
             data.setAction(SmsFilterAction.parse(cursor.getString(column)));
             break;
+        case FilterRules.SUB_ID:
+            if (!cursor.isNull(column))
+                data.setSubId(cursor.getInt(column));
+            break;
         case FilterRules.SENDER_MODE:
             data.getSenderPattern().setMode(SmsFilterMode.parse(cursor.getString(column)));
             break;
@@ -64,6 +103,10 @@ public class FilterRuleLoader extends AutoContentLoader<SmsFilterData> {
             if (!cursor.isNull(column))
                 data.getSenderPattern().setCaseSensitive(cursor.getInt(column) != 0);
             break;
+        case FilterRules.SENDER_NORMALIZATION:
+            if (!cursor.isNull(column))
+                data.getSenderPattern().setNormalization(SmsFilterNormalization.parse(cursor.getString(column)));
+            break;
         case FilterRules.BODY_MODE:
             data.getBodyPattern().setMode(SmsFilterMode.parse(cursor.getString(column)));
             break;
@@ -74,36 +117,59 @@ public class FilterRuleLoader extends AutoContentLoader<SmsFilterData> {
             if (!cursor.isNull(column))
                 data.getBodyPattern().setCaseSensitive(cursor.getInt(column) != 0);
             break;
+        case FilterRules.BODY_NORMALIZATION:
+            if (!cursor.isNull(column))
+                data.getBodyPattern().setNormalization(SmsFilterNormalization.parse(cursor.getString(column)));
+            break;
+        case FilterRules.HIT_COUNT:
+            data.setHitCount(cursor.getInt(column));
+            break;
+        case FilterRules.LAST_HIT_TIME:
+            data.setLastHitTime(cursor.getLong(column));
+            break;
         }
     }
 
     @Override
     protected ContentValues serialize(SmsFilterData data) {
-        ContentValues values = MapUtils.contentValuesForSize(8);
+        ContentValues values = MapUtils.contentValuesForSize(11);
         if (data.getId() >= 0) {
             values.put(FilterRules._ID, data.getId());
         }
         values.put(FilterRules.ACTION, data.getAction().name());
+        if (data.getSubId() != SmsFilterData.ALL_SUBSCRIPTIONS) {
+            values.put(FilterRules.SUB_ID, data.getSubId());
+        } else {
+            values.putNull(FilterRules.SUB_ID);
+        }
         SmsFilterPatternData senderPattern = data.getSenderPattern();
         if (senderPattern.hasData()) {
             values.put(FilterRules.SENDER_MODE, senderPattern.getMode().name());
             values.put(FilterRules.SENDER_PATTERN, senderPattern.getPattern());
             values.put(FilterRules.SENDER_CASE_SENSITIVE, senderPattern.isCaseSensitive() ? 1 : 0);
+            values.put(FilterRules.SENDER_NORMALIZATION, senderPattern.getNormalization().name());
         } else {
             values.putNull(FilterRules.SENDER_MODE);
             values.putNull(FilterRules.SENDER_PATTERN);
             values.putNull(FilterRules.SENDER_CASE_SENSITIVE);
+            values.putNull(FilterRules.SENDER_NORMALIZATION);
         }
         SmsFilterPatternData bodyPattern = data.getBodyPattern();
         if (bodyPattern.hasData()) {
             values.put(FilterRules.BODY_MODE, bodyPattern.getMode().name());
             values.put(FilterRules.BODY_PATTERN, bodyPattern.getPattern());
             values.put(FilterRules.BODY_CASE_SENSITIVE, bodyPattern.isCaseSensitive() ? 1 : 0);
+            values.put(FilterRules.BODY_NORMALIZATION, bodyPattern.getNormalization().name());
         } else {
             values.putNull(FilterRules.BODY_MODE);
             values.putNull(FilterRules.BODY_PATTERN);
             values.putNull(FilterRules.BODY_CASE_SENSITIVE);
+            values.putNull(FilterRules.BODY_NORMALIZATION);
         }
+        // Hit statistics are intentionally not serialized; they are
+        // owned by the Xposed module and only written via recordHits(),
+        // otherwise saving a rule in the editor would clobber any hits
+        // recorded while the editor was open.
         return values;
     }
 
@@ -134,6 +200,38 @@ public class FilterRuleLoader extends AutoContentLoader<SmsFilterData> {
         return filterData;
     }
 
+    public CursorWrapper<SmsFilterData> queryAll(Context context, long[] ids) {
+        StringBuilder where = new StringBuilder(FilterRules._ID).append(" IN (");
+        String[] whereArgs = new String[ids.length];
+        for (int i = 0; i < ids.length; ++i) {
+            if (i > 0) {
+                where.append(',');
+            }
+            where.append('?');
+            whereArgs[i] = String.valueOf(ids[i]);
+        }
+        where.append(')');
+        return queryAll(context, where.toString(), whereArgs, null);
+    }
+
+    public void recordHits(Context context, long[] ids, int[] hitCounts, long[] lastHitTimes) {
+        Bundle extras = new Bundle(3);
+        extras.putLongArray(FilterRules.EXTRA_IDS, ids);
+        extras.putIntArray(FilterRules.EXTRA_HIT_COUNTS, hitCounts);
+        extras.putLongArray(FilterRules.EXTRA_LAST_HIT_TIMES, lastHitTimes);
+        ContentResolver contentResolver = context.getContentResolver();
+        contentResolver.call(DatabaseContract.CONTENT_URI, FilterRules.METHOD_RECORD_HITS, null, extras);
+    }
+
+    public long getGeneration(Context context) {
+        ContentResolver contentResolver = context.getContentResolver();
+        Bundle result = contentResolver.call(DatabaseContract.CONTENT_URI, FilterRules.METHOD_GET_GENERATION, null, null);
+        if (result == null) {
+            return -1;
+        }
+        return result.getLong(FilterRules.EXTRA_GENERATION, -1);
+    }
+
     public boolean replaceAll(Context context, List<SmsFilterData> filters) {
         ArrayList<ContentProviderOperation> ops = new ArrayList<>(filters.size() + 1);
         ops.add(ContentProviderOperation.newDelete(FilterRules.CONTENT_URI).build());
@@ -150,4 +248,136 @@ public class FilterRuleLoader extends AutoContentLoader<SmsFilterData> {
             return false;
         }
     }
+
+    /**
+     * Fetches all rules as a binary snapshot, which is much cheaper than
+     * going through a cursor. If {@code knownGeneration} is still the
+     * current generation, the rules are not transferred at all. Returns
+     * null if the snapshot could not be fetched, in which case the rules
+     * should be queried normally.
+     */
+    public Snapshot querySnapshot(Context context, long knownGeneration) throws IOException {
+        ContentResolver contentResolver = context.getContentResolver();
+        ByteArrayOutputStream data = null;
+        long generation = -1;
+        int chunkCount = 1;
+        for (int i = 0; i < chunkCount; ++i) {
+            Bundle extras = new Bundle(3);
+            extras.putInt(FilterRules.EXTRA_SNAPSHOT_VERSION, SNAPSHOT_VERSION);
+            extras.putLong(FilterRules.EXTRA_KNOWN_GENERATION, knownGeneration);
+            extras.putInt(FilterRules.EXTRA_CHUNK_INDEX, i);
+            Bundle result = contentResolver.call(DatabaseContract.CONTENT_URI, FilterRules.METHOD_GET_SNAPSHOT, null, extras);
+            if (result == null) {
+                return null;
+            }
+
+            long chunkGeneration = result.getLong(FilterRules.EXTRA_GENERATION, -1);
+            byte[] chunk = result.getByteArray(FilterRules.EXTRA_CHUNK);
+            if (i == 0) {
+                if (chunk == null) {
+                    return new Snapshot(chunkGeneration, null);
+                }
+                generation = chunkGeneration;
+                chunkCount = result.getInt(FilterRules.EXTRA_CHUNK_COUNT, 1);
+                data = new ByteArrayOutputStream(chunk.length * chunkCount);
+            } else if (chunk == null || chunkGeneration != generation) {
+                Xlog.w("SMS filters changed while fetching snapshot");
+                return null;
+            }
+            data.write(chunk);
+        }
+        return new Snapshot(generation, decodeSnapshot(data.toByteArray()));
+    }
+
+    public byte[] encodeSnapshot(CursorWrapper<SmsFilterData> filterCursor) {
+        ArrayList<SmsFilterData> filters = new ArrayList<>(filterCursor.getCount());
+        while (filterCursor.moveToNext()) {
+            try {
+                filters.add(filterCursor.get());
+            } catch (Exception e) {
+                Xlog.e("Failed to load SMS filter", e);
+            }
+        }
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream(64 * filters.size() + 4);
+        DataOutputStream out = new DataOutputStream(data);
+        try {
+            out.writeInt(filters.size());
+            for (SmsFilterData filter : filters) {
+                out.writeLong(filter.getId());
+                writeEnum(out, filter.getAction());
+                out.writeInt(filter.getSubId());
+                writePattern(out, filter.getSenderPattern());
+                writePattern(out, filter.getBodyPattern());
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Can't happen when writing to memory
+            throw new AssertionError(e);
+        }
+        return data.toByteArray();
+    }
+
+    private static List<SmsFilterData> decodeSnapshot(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid snapshot rule count: " + count);
+        }
+        ArrayList<SmsFilterData> filters = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            SmsFilterData filter = new SmsFilterData();
+            filter.setId(in.readLong());
+            filter.setAction(readEnum(in, SmsFilterAction.values()));
+            filter.setSubId(in.readInt());
+            readPattern(in, filter.getSenderPattern());
+            readPattern(in, filter.getBodyPattern());
+            filters.add(filter);
+        }
+        return filters;
+    }
+
+    private static void writePattern(DataOutputStream out, SmsFilterPatternData pattern) throws IOException {
+        out.writeBoolean(pattern.hasData());
+        if (pattern.hasData()) {
+            writeEnum(out, pattern.getMode());
+            byte[] bytes = pattern.getPattern().getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeBoolean(pattern.isCaseSensitive());
+            writeEnum(out, pattern.getNormalization());
+        }
+    }
+
+    private static void readPattern(DataInputStream in, SmsFilterPatternData pattern) throws IOException {
+        if (!in.readBoolean()) {
+            return;
+        }
+        pattern.setMode(readEnum(in, SmsFilterMode.values()));
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid snapshot pattern length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        pattern.setPattern(new String(bytes, "UTF-8"));
+        pattern.setCaseSensitive(in.readBoolean());
+        pattern.setNormalization(readEnum(in, SmsFilterNormalization.values()));
+    }
+
+    private static void writeEnum(DataOutputStream out, Enum<?> value) throws IOException {
+        // Enums are stored by ordinal; SNAPSHOT_VERSION covers reordering
+        out.writeByte(value != null ? value.ordinal() : -1);
+    }
+
+    private static <E extends Enum<E>> E readEnum(DataInputStream in, E[] values) throws IOException {
+        int ordinal = in.readByte();
+        if (ordinal == -1) {
+            return null;
+        }
+        if (ordinal < 0 || ordinal >= values.length) {
+            throw new IOException("Invalid snapshot enum value: " + ordinal);
+        }
+        return values[ordinal];
+    }
 }
@@ -41,21 +41,96 @@ public final class DatabaseContract {
         public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/vnd.crossbowffs.filter";
 
         public static final String ACTION = "action";
+        public static final String SUB_ID = "sub_id";
         public static final String SENDER_MODE = "sender_mode";
         public static final String SENDER_PATTERN = "sender_pattern";
         public static final String SENDER_CASE_SENSITIVE = "sender_case_sensitive";
+        public static final String SENDER_NORMALIZATION = "sender_normalization";
         public static final String BODY_MODE = "body_mode";
         public static final String BODY_PATTERN = "body_pattern";
         public static final String BODY_CASE_SENSITIVE = "body_case_sensitive";
+        public static final String BODY_NORMALIZATION = "body_normalization";
+        public static final String HIT_COUNT = "hit_count";
+        public static final String LAST_HIT_TIME = "last_hit_time";
         public static final String[] ALL = {
             _ID,
             ACTION,
+            SUB_ID,
             SENDER_MODE,
             SENDER_PATTERN,
             SENDER_CASE_SENSITIVE,
+            SENDER_NORMALIZATION,
             BODY_MODE,
             BODY_PATTERN,
             BODY_CASE_SENSITIVE,
+            BODY_NORMALIZATION,
+            HIT_COUNT,
+            LAST_HIT_TIME,
         };
+
+        // Hit statistics are written in batches through ContentProvider#call()
+        // rather than through update(), so that recording hits does not look
+        // like a rule change to anyone observing CONTENT_URI.
+        public static final Uri STATS_CONTENT_URI = Uri.withAppendedPath(DatabaseContract.CONTENT_URI, "filter_stats");
+        public static final String METHOD_RECORD_HITS = "record_filter_hits";
+        public static final String EXTRA_IDS = "ids";
+        public static final String EXTRA_HIT_COUNTS = "hit_counts";
+        public static final String EXTRA_LAST_HIT_TIMES = "last_hit_times";
+
+        // The generation is bumped by every write to the rules (but not
+        // by recording hits), so a reader can tell whether it has seen
+        // the latest version of the rules. It is odd during a write.
+        public static final String METHOD_GET_GENERATION = "get_filter_generation";
+        public static final String EXTRA_GENERATION = "generation";
+
+        // The whole rule set can also be fetched as one binary snapshot,
+        // split into chunks if it is large. The caller passes the
+        // generation it already has; if that is still current, only the
+        // generation is returned. Returns null if the caller expects a
+        // different snapshot format.
+        public static final String METHOD_GET_SNAPSHOT = "get_filter_snapshot";
+        public static final String EXTRA_SNAPSHOT_VERSION = "snapshot_version";
+        public static final String EXTRA_KNOWN_GENERATION = "known_generation";
+        public static final String EXTRA_CHUNK_INDEX = "chunk_index";
+        public static final String EXTRA_CHUNK_COUNT = "chunk_count";
+        public static final String EXTRA_CHUNK = "chunk";
+    }
+
+    public static class Diagnostics {
+        // Diagnostics are exported by the Xposed module and kept in
+        // memory by the provider, which also keeps the last export of
+        // each on disk so that it survives the app process being killed.
+        // Every export starts the app process if it is not running, so
+        // the module batches them and only exports after messages.
+        public static final String METHOD_PUT = "put_diagnostics";
+        public static final String METHOD_GET = "get_diagnostics";
+
+        public static final String KEY_FILTER_TIMINGS = "filter_timings";
+        public static final String EXTRA_IDS = "ids";
+        public static final String EXTRA_SAMPLE_COUNTS = "sample_counts";
+        public static final String EXTRA_P50_NANOS = "p50_nanos";
+        public static final String EXTRA_P99_NANOS = "p99_nanos";
+
+        public static final String KEY_VERDICT_CACHE = "verdict_cache";
+        public static final String EXTRA_CACHE_HITS = "hits";
+        public static final String EXTRA_CACHE_MISSES = "misses";
+        public static final String EXTRA_CACHE_UNCACHEABLE = "uncacheable";
+
+        public static final String KEY_STAGE_TIMINGS = "stage_timings";
+        public static final String EXTRA_STAGES = "stages";
+        public static final String EXTRA_P95_NANOS = "p95_nanos";
+        public static final String EXTRA_FAIL_OPEN_COUNTS = "fail_open_counts";
+
+        public static final String KEY_FILTER_MEMORY = "filter_memory";
+        public static final String EXTRA_ESTIMATED_BYTES = "estimated_bytes";
+        public static final String EXTRA_BUDGET_BYTES = "budget_bytes";
+        public static final String EXTRA_FILTER_COUNT = "filter_count";
+        public static final String EXTRA_REGEX_COUNT = "regex_count";
+        public static final String EXTRA_COMPILED_REGEX_COUNT = "compiled_regex_count";
+        public static final String EXTRA_TRIM_COUNT = "trim_count";
+
+        // Encoded as described in SmsEvent, oldest first
+        public static final String KEY_EVENT_LOG = "event_log";
+        public static final String EXTRA_EVENTS = "events";
     }
 }
@@ -34,12 +34,17 @@ import static com.crossbowffs.nekosms.provider.DatabaseContract.FilterRules;
         "CREATE TABLE " + FilterRules.TABLE + "(" +
             FilterRules._ID                     + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
             FilterRules.ACTION                  + " TEXT NOT NULL, " +
+            FilterRules.SUB_ID                  + " INTEGER, " +
             FilterRules.SENDER_MODE             + " TEXT, " +
             FilterRules.SENDER_PATTERN          + " TEXT, " +
             FilterRules.SENDER_CASE_SENSITIVE   + " INTEGER, " +
+            FilterRules.SENDER_NORMALIZATION    + " TEXT, " +
             FilterRules.BODY_MODE               + " TEXT, " +
             FilterRules.BODY_PATTERN            + " TEXT, " +
-            FilterRules.BODY_CASE_SENSITIVE     + " INTEGER" +
+            FilterRules.BODY_CASE_SENSITIVE     + " INTEGER, " +
+            FilterRules.BODY_NORMALIZATION      + " TEXT, " +
+            FilterRules.HIT_COUNT               + " INTEGER NOT NULL DEFAULT 0, " +
+            FilterRules.LAST_HIT_TIME           + " INTEGER NOT NULL DEFAULT 0" +
         ");";
 
     public DatabaseHelper(Context context) {
@@ -57,13 +62,33 @@ import static com.crossbowffs.nekosms.provider.DatabaseContract.FilterRules;
         Xlog.i("Upgrading database from v%d to v%d", oldVersion, newVersion);
         if (oldVersion < 8) {
             upgradePre8(db);
-        } else if (oldVersion == 8) {
+            return;
+        }
+
+        // This re-creates the tables using the current schema,
+        // so there is nothing left to upgrade afterwards.
+        if (oldVersion == 8) {
             upgrade8To11(db);
-        } else if (oldVersion == 9) {
+            return;
+        }
+
+        if (oldVersion == 9) {
             upgrade9To11(db);
         } else if (oldVersion == 10) {
             upgrade10To11(db);
         }
+
+        if (oldVersion < 12) {
+            upgrade11To12(db);
+        }
+
+        if (oldVersion < 13) {
+            upgrade12To13(db);
+        }
+
+        if (oldVersion < 14) {
+            upgrade13To14(db);
+        }
     }
 
     private void upgradePre8(SQLiteDatabase db) {
@@ -155,4 +180,32 @@ import static com.crossbowffs.nekosms.provider.DatabaseContract.FilterRules;
             " ADD COLUMN " + BlockedMessages.SUB_ID + " INTEGER NOT NULL" +
             " DEFAULT 0");
     }
+
+    private void upgrade11To12(SQLiteDatabase db) {
+        db.execSQL(
+            "ALTER TABLE " + FilterRules.TABLE +
+            " ADD COLUMN " + FilterRules.HIT_COUNT + " INTEGER NOT NULL" +
+            " DEFAULT 0");
+        db.execSQL(
+            "ALTER TABLE " + FilterRules.TABLE +
+            " ADD COLUMN " + FilterRules.LAST_HIT_TIME + " INTEGER NOT NULL" +
+            " DEFAULT 0");
+    }
+
+    private void upgrade12To13(SQLiteDatabase db) {
+        // Null is treated as NFC, which is what all existing rules use
+        db.execSQL(
+            "ALTER TABLE " + FilterRules.TABLE +
+            " ADD COLUMN " + FilterRules.SENDER_NORMALIZATION + " TEXT");
+        db.execSQL(
+            "ALTER TABLE " + FilterRules.TABLE +
+            " ADD COLUMN " + FilterRules.BODY_NORMALIZATION + " TEXT");
+    }
+
+    private void upgrade13To14(SQLiteDatabase db) {
+        // Null means the rule applies to all SIM cards
+        db.execSQL(
+            "ALTER TABLE " + FilterRules.TABLE +
+            " ADD COLUMN " + FilterRules.SUB_ID + " INTEGER");
+    }
 }
@@ -1,17 +1,61 @@
 package com.crossbowffs.nekosms.provider;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcel;
 import android.support.annotation.NonNull;
+import com.crossbowffs.nekosms.data.SmsFilterData;
+import com.crossbowffs.nekosms.loader.FilterRuleLoader;
+import com.crossbowffs.nekosms.utils.Xlog;
 import com.crossbowffs.nekosms.widget.AutoContentProvider;
+import com.crossbowffs.nekosms.widget.CursorWrapper;
+
+import java.io.*;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 import static com.crossbowffs.nekosms.provider.DatabaseContract.BlockedMessages;
+import static com.crossbowffs.nekosms.provider.DatabaseContract.Diagnostics;
 import static com.crossbowffs.nekosms.provider.DatabaseContract.FilterRules;
 
 public class DatabaseProvider extends AutoContentProvider {
+    // The last export of each diagnostic is also written to disk,
+    // since the module only exports them again after it handles the
+    // next message, and they would be empty until then whenever the
+    // app process is restarted. Guarded by mDiagnostics.
+    private static final String DIAGNOSTICS_DIR = "diagnostics";
+    private final HashMap<String, Bundle> mDiagnostics = new HashMap<>();
+
+    // Generation of the filter rules, which works like a seqlock: it
+    // is incremented before and after every write, so it is odd while
+    // a write is in progress, and a reader that sees the same even
+    // value before and after a query knows it did not race with one.
+    // Only equality is meaningful: it starts from a random even value,
+    // so that a reader can't mistake the rules of a restarted process
+    // for the ones it cached, which the wall clock could not guarantee
+    // since it may be set back. The top bit stays clear, so it is never
+    // negative (-1 means that it could not be read).
+    private final Object mFilterWriteLock = new Object();
+    private volatile long mFilterGeneration = (new SecureRandom().nextLong() >>> 2) << 1;
+    private int mFilterWriteDepth;
+
+    // Encoded rule snapshot for the current generation, built the first
+    // time it is requested after each write. Guarded by mFilterWriteLock.
+    private static final int SNAPSHOT_CHUNK_SIZE = 256 * 1024;
+    private long mSnapshotGeneration = -1;
+    private byte[] mSnapshotData;
+
     public DatabaseProvider() {
         super(DatabaseContract.AUTHORITY, new ProviderTable[] {
             new ProviderTable(BlockedMessages.TABLE, BlockedMessages.CONTENT_ITEM_TYPE, BlockedMessages.CONTENT_TYPE),
@@ -24,6 +68,211 @@ public class DatabaseProvider extends AutoContentProvider {
         return new DatabaseHelper(context);
     }
 
+    private void recordFilterHits(Bundle extras) {
+        long[] ids = extras.getLongArray(FilterRules.EXTRA_IDS);
+        int[] hitCounts = extras.getIntArray(FilterRules.EXTRA_HIT_COUNTS);
+        long[] lastHitTimes = extras.getLongArray(FilterRules.EXTRA_LAST_HIT_TIMES);
+        if (ids == null || hitCounts == null || lastHitTimes == null ||
+            ids.length != hitCounts.length || ids.length != lastHitTimes.length) {
+            throw new IllegalArgumentException("Invalid filter hit data");
+        }
+
+        // All counters are written in a single transaction, so the
+        // cost is the same whether one rule was hit or a thousand.
+        SQLiteDatabase db = getDatabase(true);
+        SQLiteStatement statement = db.compileStatement(
+            "UPDATE " + FilterRules.TABLE + " SET " +
+            FilterRules.HIT_COUNT + "=" + FilterRules.HIT_COUNT + "+?, " +
+            FilterRules.LAST_HIT_TIME + "=MAX(" + FilterRules.LAST_HIT_TIME + ",?) " +
+            "WHERE " + FilterRules._ID + "=?");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ids.length; ++i) {
+                statement.bindLong(1, hitCounts[i]);
+                statement.bindLong(2, lastHitTimes[i]);
+                statement.bindLong(3, ids[i]);
+                statement.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            statement.close();
+        }
+        getContext().getContentResolver().notifyChange(FilterRules.STATS_CONTENT_URI, null);
+    }
+
+    private File getDiagnosticsFile(String key) {
+        // The key is used as the file name, so it must not be
+        // able to refer to anything outside of the directory
+        if (key == null || !key.matches("[a-z_]+")) {
+            throw new IllegalArgumentException("Invalid diagnostics key: " + key);
+        }
+        return new File(new File(getContext().getFilesDir(), DIAGNOSTICS_DIR), key);
+    }
+
+    private static void writeDiagnosticsFile(File file, Bundle data) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            data.writeToParcel(parcel, 0);
+            File tmpFile = new File(file.getPath() + ".tmp");
+            file.getParentFile().mkdirs();
+            try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+                out.write(parcel.marshall());
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Failed to rename " + tmpFile);
+            }
+        } catch (IOException e) {
+            Xlog.e("Failed to write diagnostics file", e);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static Bundle readDiagnosticsFile(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            byte[] bytes = new byte[(int)file.length()];
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                in.readFully(bytes);
+            }
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            Bundle data = new Bundle();
+            data.readFromParcel(parcel);
+            return data;
+        } catch (IOException | RuntimeException e) {
+            // Diagnostics are not worth keeping around if they
+            // can't be read back (e.g. after a system update)
+            Xlog.e("Failed to read diagnostics file", e);
+            file.delete();
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private void putDiagnostics(String key, Bundle data) {
+        File file = getDiagnosticsFile(key);
+        synchronized (mDiagnostics) {
+            if (data == null) {
+                mDiagnostics.remove(key);
+                file.delete();
+            } else {
+                mDiagnostics.put(key, data);
+                writeDiagnosticsFile(file, data);
+            }
+        }
+    }
+
+    private Bundle getDiagnostics(String key) {
+        File file = getDiagnosticsFile(key);
+        synchronized (mDiagnostics) {
+            Bundle data = mDiagnostics.get(key);
+            if (data == null) {
+                data = readDiagnosticsFile(file);
+                if (data != null) {
+                    mDiagnostics.put(key, data);
+                }
+            }
+            return data;
+        }
+    }
+
+    private static boolean isFilterRulesUri(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        return !segments.isEmpty() && FilterRules.TABLE.equals(segments.get(0));
+    }
+
+    private void beginFilterWrite() {
+        // Must be called with mFilterWriteLock held. Writes may be
+        // nested when applying a batch, which counts as one write.
+        if (mFilterWriteDepth++ == 0) {
+            mFilterGeneration++;
+        }
+    }
+
+    private void endFilterWrite() {
+        if (--mFilterWriteDepth == 0) {
+            mFilterGeneration++;
+        }
+    }
+
+    private Bundle getFilterGeneration() {
+        Bundle result = new Bundle(1);
+        result.putLong(FilterRules.EXTRA_GENERATION, mFilterGeneration);
+        return result;
+    }
+
+    private byte[] encodeFilterSnapshot() {
+        Cursor cursor = getDatabase(false).query(FilterRules.TABLE, FilterRules.ALL, null, null, null, null, null);
+        try (CursorWrapper<SmsFilterData> filterCursor = FilterRuleLoader.get().wrapCursor(cursor)) {
+            return FilterRuleLoader.get().encodeSnapshot(filterCursor);
+        }
+    }
+
+    private Bundle getFilterSnapshot(Bundle extras) {
+        if (extras == null || extras.getInt(FilterRules.EXTRA_SNAPSHOT_VERSION) != FilterRuleLoader.SNAPSHOT_VERSION) {
+            return null;
+        }
+        long knownGeneration = extras.getLong(FilterRules.EXTRA_KNOWN_GENERATION, -1);
+        int chunkIndex = extras.getInt(FilterRules.EXTRA_CHUNK_INDEX);
+
+        // Holding the write lock means no write is in progress, so the
+        // generation is stable and matches what is in the database
+        long generation;
+        byte[] data;
+        synchronized (mFilterWriteLock) {
+            generation = mFilterGeneration;
+            if (knownGeneration == generation) {
+                return getFilterGeneration();
+            }
+            if (mSnapshotGeneration != generation) {
+                mSnapshotData = encodeFilterSnapshot();
+                mSnapshotGeneration = generation;
+            }
+            data = mSnapshotData;
+        }
+
+        int chunkCount = Math.max(1, (data.length + SNAPSHOT_CHUNK_SIZE - 1) / SNAPSHOT_CHUNK_SIZE);
+        if (chunkIndex < 0 || chunkIndex >= chunkCount) {
+            throw new IllegalArgumentException("Invalid snapshot chunk: " + chunkIndex);
+        }
+        int start = chunkIndex * SNAPSHOT_CHUNK_SIZE;
+        byte[] chunk = new byte[Math.min(SNAPSHOT_CHUNK_SIZE, data.length - start)];
+        System.arraycopy(data, start, chunk, 0, chunk.length);
+
+        Bundle result = new Bundle(3);
+        result.putLong(FilterRules.EXTRA_GENERATION, generation);
+        result.putInt(FilterRules.EXTRA_CHUNK_COUNT, chunkCount);
+        result.putByteArray(FilterRules.EXTRA_CHUNK, chunk);
+        return result;
+    }
+
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        checkAccess();
+        switch (method) {
+        case FilterRules.METHOD_RECORD_HITS:
+            recordFilterHits(extras);
+            return null;
+        case FilterRules.METHOD_GET_GENERATION:
+            return getFilterGeneration();
+        case FilterRules.METHOD_GET_SNAPSHOT:
+            return getFilterSnapshot(extras);
+        case Diagnostics.METHOD_PUT:
+            putDiagnostics(arg, extras);
+            return null;
+        case Diagnostics.METHOD_GET:
+            return getDiagnostics(arg);
+        default:
+            return super.call(method, arg, extras);
+        }
+    }
+
     /*
      * Below is an ugly workaround for Android 8.0+. Since the
      * com.android.phone package no longer has SMS permissions,
@@ -48,25 +297,90 @@ public class DatabaseProvider extends AutoContentProvider {
     @Override
     public Uri insert(@NonNull Uri uri, ContentValues values) {
         checkAccess();
-        return super.insert(uri, values);
+        if (!isFilterRulesUri(uri)) {
+            return super.insert(uri, values);
+        }
+        synchronized (mFilterWriteLock) {
+            beginFilterWrite();
+            try {
+                return super.insert(uri, values);
+            } finally {
+                endFilterWrite();
+            }
+        }
     }
 
     @Override
     public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] bulkValues) {
         checkAccess();
-        return super.bulkInsert(uri, bulkValues);
+        if (!isFilterRulesUri(uri)) {
+            return super.bulkInsert(uri, bulkValues);
+        }
+        synchronized (mFilterWriteLock) {
+            beginFilterWrite();
+            try {
+                return super.bulkInsert(uri, bulkValues);
+            } finally {
+                endFilterWrite();
+            }
+        }
     }
 
     @Override
     public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
         checkAccess();
-        return super.delete(uri, selection, selectionArgs);
+        if (!isFilterRulesUri(uri)) {
+            return super.delete(uri, selection, selectionArgs);
+        }
+        synchronized (mFilterWriteLock) {
+            beginFilterWrite();
+            try {
+                return super.delete(uri, selection, selectionArgs);
+            } finally {
+                endFilterWrite();
+            }
+        }
     }
 
     @Override
     public int update(@NonNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         checkAccess();
-        return super.update(uri, values, selection, selectionArgs);
+        if (!isFilterRulesUri(uri)) {
+            return super.update(uri, values, selection, selectionArgs);
+        }
+        synchronized (mFilterWriteLock) {
+            beginFilterWrite();
+            try {
+                return super.update(uri, values, selection, selectionArgs);
+            } finally {
+                endFilterWrite();
+            }
+        }
+    }
+
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+        // The individual operations are only committed at the end of
+        // the batch, so the whole batch must count as a single write
+        boolean writesFilters = false;
+        for (ContentProviderOperation operation : operations) {
+            if (isFilterRulesUri(operation.getUri())) {
+                writesFilters = true;
+                break;
+            }
+        }
+        if (!writesFilters) {
+            return super.applyBatch(operations);
+        }
+        synchronized (mFilterWriteLock) {
+            beginFilterWrite();
+            try {
+                return super.applyBatch(operations);
+            } finally {
+                endFilterWrite();
+            }
+        }
     }
 
     private void checkAccess() {
@@ -0,0 +1,69 @@
+package com.crossbowffs.nekosms.utils;
+
+import java.util.Arrays;
+
+/**
+ * Extracts bigrams (pairs of adjacent characters) from runs of CJK
+ * text, which has no word boundaries to tokenize on. Each bigram is
+ * packed into an int as {@code (first << 16) | second}, and the
+ * returned arrays are sorted and free of duplicates.
+ */
+public final class CjkBigrams {
+    private static final int[] EMPTY = new int[0];
+
+    private CjkBigrams() { }
+
+    public static boolean isCjk(char c) {
+        return (c >= '\u3040' && c <= '\u30ff') || // Hiragana, Katakana
+               (c >= '\u3400' && c <= '\u4dbf') || // CJK Extension A
+               (c >= '\u4e00' && c <= '\u9fff') || // CJK Unified Ideographs
+               (c >= '\uac00' && c <= '\ud7af') || // Hangul Syllables
+               (c >= '\uf900' && c <= '\ufaff');   // CJK Compatibility Ideographs
+    }
+
+    public static boolean containsCjk(CharSequence text) {
+        for (int i = 0; i < text.length(); ++i) {
+            if (isCjk(text.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static int[] extract(CharSequence text) {
+        int length = text.length();
+        if (length < 2) {
+            return EMPTY;
+        }
+
+        int[] bigrams = null;
+        int count = 0;
+        char prev = text.charAt(0);
+        boolean prevCjk = isCjk(prev);
+        for (int i = 1; i < length; ++i) {
+            char c = text.charAt(i);
+            boolean cjk = isCjk(c);
+            if (cjk && prevCjk) {
+                if (bigrams == null) {
+                    bigrams = new int[length - i];
+                }
+                bigrams[count++] = (prev << 16) | c;
+            }
+            prev = c;
+            prevCjk = cjk;
+        }
+
+        if (count == 0) {
+            return EMPTY;
+        }
+
+        Arrays.sort(bigrams, 0, count);
+        int unique = 1;
+        for (int i = 1; i < count; ++i) {
+            if (bigrams[i] != bigrams[unique - 1]) {
+                bigrams[unique++] = bigrams[i];
+            }
+        }
+        return Arrays.copyOf(bigrams, unique);
+    }
+}
@@ -0,0 +1,114 @@
+package com.crossbowffs.nekosms.utils;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+
+/**
+ * Computes a "skeleton" of some text, so that strings which only
+ * differ by lookalike characters (e.g. Cyrillic or full-width
+ * letters), invisible characters, or combining marks end up equal.
+ * The skeleton is always lowercase. This is a much smaller and faster
+ * approximation of the Unicode confusables algorithm (UTS #39), using
+ * compatibility decomposition plus a fixed table and a few character
+ * ranges instead of the full confusables data.
+ */
+public final class ConfusableSkeleton {
+    // Both arrays are indexed together, and SOURCES must be sorted
+    private static final char[] SOURCES = {
+        '0', '1', '|', '\u0131', '\u0251', '\u0261', '\u0269', '\u0391',
+        '\u0392', '\u0395', '\u0396', '\u0397', '\u0399', '\u039a', '\u039c', '\u039d',
+        '\u039f', '\u03a1', '\u03a4', '\u03a5', '\u03a7', '\u03b1', '\u03b3', '\u03b9',
+        '\u03ba', '\u03bd', '\u03bf', '\u03c1', '\u03c5', '\u03c7', '\u0405', '\u0406',
+        '\u0408', '\u0410', '\u0412', '\u0415', '\u041a', '\u041c', '\u041d', '\u041e',
+        '\u0420', '\u0421', '\u0422', '\u0423', '\u0425', '\u0430', '\u0432', '\u0435',
+        '\u043a', '\u043c', '\u043d', '\u043e', '\u0440', '\u0441', '\u0442', '\u0443',
+        '\u0445', '\u0455', '\u0456', '\u0458', '\u04ae', '\u04af', '\u04ba', '\u04bb',
+        '\u04c0', '\u04cf', '\u0500', '\u0501', '\u051a', '\u051b', '\u051c', '\u051d',
+        '\u057d', '\u0585', '\u2113',
+    };
+
+    private static final char[] TARGETS = {
+        'o', 'l', 'l', 'i', 'a', 'g', 'i', 'a',
+        'b', 'e', 'z', 'h', 'i', 'k', 'm', 'n',
+        'o', 'p', 't', 'y', 'x', 'a', 'y', 'i',
+        'k', 'v', 'o', 'p', 'u', 'x', 's', 'i',
+        'j', 'a', 'b', 'e', 'k', 'm', 'h', 'o',
+        'p', 'c', 't', 'y', 'x', 'a', 'b', 'e',
+        'k', 'm', 'h', 'o', 'p', 'c', 't', 'y',
+        'x', 's', 'i', 'j', 'y', 'y', 'h', 'h',
+        'l', 'l', 'd', 'd', 'q', 'q', 'w', 'w',
+        'u', 'o', 'l',
+    };
+
+    private ConfusableSkeleton() { }
+
+    public static String skeleton(CharSequence text) {
+        // Precomposed letters (e.g. "\u00e9") are decomposed first, so
+        // that their accents are stripped just like combining marks
+        // that were sent separately
+        CharSequence decomposed = text;
+        if (!Normalizer.isNormalized(text, Normalizer.Form.NFKD)) {
+            decomposed = Normalizer.normalize(text, Normalizer.Form.NFKD);
+        }
+
+        int length = decomposed.length();
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; ) {
+            int c = Character.codePointAt(decomposed, i);
+            i += Character.charCount(c);
+            if (isIgnorable(c)) {
+                continue;
+            }
+            sb.appendCodePoint(map(c));
+        }
+
+        // Put back together whatever was decomposed but not stripped
+        // (e.g. Hangul syllables)
+        String skeleton = sb.toString();
+        if (!Normalizer.isNormalized(skeleton, Normalizer.Form.NFC)) {
+            skeleton = Normalizer.normalize(skeleton, Normalizer.Form.NFC);
+        }
+        return skeleton;
+    }
+
+    private static boolean isIgnorable(int c) {
+        // Invisible formatting characters and combining marks,
+        // which are commonly used to break up keywords
+        switch (Character.getType(c)) {
+        case Character.FORMAT:
+        case Character.NON_SPACING_MARK:
+        case Character.ENCLOSING_MARK:
+            return true;
+        }
+        return c == 0x115f || c == 0x1160 || c == 0x3164 || c == 0xffa0 || // Hangul fillers
+               (c >= 0x180b && c <= 0x180d) ||                          // Mongolian variation selectors
+               (c >= 0xfe00 && c <= 0xfe0f);                            // Variation selectors
+    }
+
+    private static int map(int c) {
+        if (c >= 0xff01 && c <= 0xff5e) {
+            // Full-width ASCII
+            c -= 0xfee0;
+        } else if (c >= 0x24b6 && c <= 0x24cf) {
+            // Circled uppercase letters
+            c = 'a' + (c - 0x24b6);
+        } else if (c >= 0x24d0 && c <= 0x24e9) {
+            // Circled lowercase letters
+            c = 'a' + (c - 0x24d0);
+        } else if (c >= 0x1d400 && c <= 0x1d6a3) {
+            // Mathematical alphanumeric letters, 52 per style
+            c = 'a' + (c - 0x1d400) % 52 % 26;
+        } else if (c >= 0x1d7ce && c <= 0x1d7ff) {
+            // Mathematical digits, 10 per style
+            c = '0' + (c - 0x1d7ce) % 10;
+        }
+
+        if (c <= 0xffff) {
+            int index = Arrays.binarySearch(SOURCES, (char)c);
+            if (index >= 0) {
+                return TARGETS[index];
+            }
+        }
+        return Character.toLowerCase(c);
+    }
+}
@@ -7,8 +7,37 @@ import android.net.Uri;
 import android.provider.ContactsContract;
 
 public final class ContactUtils {
+    // Same number of trailing digits that the contacts provider
+    // uses to find candidate numbers for PhoneLookup queries
+    private static final int MIN_MATCH = 7;
+
     private ContactUtils() { }
 
+    /**
+     * Returns a key for the last {@link #MIN_MATCH} digits of the
+     * given number, so that formatting and country code differences
+     * are ignored, or 0 if the number does not contain any digits.
+     * The number of digits is part of the key, so short numbers
+     * don't match longer numbers ending with zeros.
+     */
+    public static int getMinMatchKey(CharSequence number) {
+        int value = 0;
+        int multiplier = 1;
+        int length = 0;
+        for (int i = number.length() - 1; i >= 0 && length < MIN_MATCH; --i) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value += (c - '0') * multiplier;
+                multiplier *= 10;
+                length++;
+            }
+        }
+        if (length == 0) {
+            return 0;
+        }
+        return length * 10000000 + value;
+    }
+
     public static boolean isContact(Context context, String number) {
         Uri uri = Uri.withAppendedPath(ContactsContract.PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
         ContentResolver contentResolver = context.getContentResolver();
@@ -0,0 +1,96 @@
+package com.crossbowffs.nekosms.utils;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Fixed-size, log-linear latency histogram. Each power-of-two range
+ * is split into {@link #SUB_BUCKET_COUNT} linear sub-buckets, similar
+ * to HdrHistogram, which bounds the relative error of any recorded
+ * value to 1/{@link #SUB_BUCKET_COUNT} while keeping the memory usage
+ * constant. Recording a value never allocates and is safe to call
+ * from multiple threads.
+ */
+public class LatencyHistogram {
+    // 16 sub-buckets, for at most 6.25% error
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Values of 2^34ns (about 17 seconds) and up share the last bucket
+    private static final int MAX_VALUE_BITS = 34;
+    public static final int BUCKET_COUNT = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + 1;
+
+    private final AtomicIntegerArray mCounts = new AtomicIntegerArray(BUCKET_COUNT);
+
+    public void record(long nanos) {
+        mCounts.incrementAndGet(getBucketIndex(nanos));
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            mCounts.set(i, 0);
+        }
+    }
+
+    public int[] getCounts() {
+        int[] counts = new int[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            counts[i] = mCounts.get(i);
+        }
+        return counts;
+    }
+
+    public static long getTotalCount(int[] counts) {
+        long total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    public static long getValueAtPercentile(int[] counts, double percentile) {
+        long total = getTotalCount(counts);
+        if (total == 0) {
+            return 0;
+        }
+
+        long target = (long)Math.ceil(total * percentile / 100.0);
+        if (target < 1) {
+            target = 1;
+        }
+
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= target) {
+                return getBucketUpperBound(i);
+            }
+        }
+        return getBucketUpperBound(counts.length - 1);
+    }
+
+    private static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return value < 0 ? 0 : (int)value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BUCKET_BITS;
+        int subBucket = (int)(value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        int index = (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+        return index < BUCKET_COUNT ? index : BUCKET_COUNT - 1;
+    }
+
+    private static long getBucketLowerBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        int subBucket = index % SUB_BUCKET_COUNT;
+        return (long)(SUB_BUCKET_COUNT + subBucket) << shift;
+    }
+
+    private static long getBucketUpperBound(int index) {
+        if (index >= BUCKET_COUNT - 1) {
+            return getBucketLowerBound(BUCKET_COUNT - 1);
+        }
+        return getBucketLowerBound(index + 1) - 1;
+    }
+}
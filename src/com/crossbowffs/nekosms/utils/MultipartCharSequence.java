@@ -0,0 +1,100 @@
+package com.crossbowffs.nekosms.utils;
+
+/**
+ * Read-only view over several strings as if they were concatenated.
+ * Used for multipart SMS bodies, so that filters can be evaluated
+ * without first copying every part into a new string. The
+ * concatenated string is only built if {@link #toString()} is called,
+ * and is cached afterwards.
+ */
+public class MultipartCharSequence implements CharSequence {
+    private final String[] mParts;
+    private final int[] mOffsets;
+    private final int mLength;
+    private int mLastPart;
+    private String mString;
+
+    public MultipartCharSequence(String[] parts) {
+        mParts = parts;
+        mOffsets = new int[parts.length];
+        int offset = 0;
+        for (int i = 0; i < parts.length; ++i) {
+            mOffsets[i] = offset;
+            offset += parts[i].length();
+        }
+        mLength = offset;
+    }
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("index=" + index + ", length=" + mLength);
+        }
+        int part = findPart(index);
+        return mParts[part].charAt(index - mOffsets[part]);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > mLength || start > end) {
+            throw new IndexOutOfBoundsException("start=" + start + ", end=" + end + ", length=" + mLength);
+        }
+        if (start == end) {
+            return "";
+        }
+
+        // Ranges within a single part don't need a copy
+        int startPart = findPart(start);
+        int partOffset = mOffsets[startPart];
+        String part = mParts[startPart];
+        if (end - partOffset <= part.length()) {
+            return part.substring(start - partOffset, end - partOffset);
+        }
+
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; ++i) {
+            sb.append(charAt(i));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        String str = mString;
+        if (str == null) {
+            StringBuilder sb = new StringBuilder(mLength);
+            for (String part : mParts) {
+                sb.append(part);
+            }
+            str = mString = sb.toString();
+        }
+        return str;
+    }
+
+    private int findPart(int index) {
+        // Most accesses are sequential (e.g. from a regex matcher),
+        // so check the previously used part before searching.
+        int part = mLastPart;
+        if (index >= mOffsets[part] && index - mOffsets[part] < mParts[part].length()) {
+            return part;
+        }
+
+        int lo = 0;
+        int hi = mParts.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (mOffsets[mid] <= index) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        mLastPart = lo;
+        return lo;
+    }
+}
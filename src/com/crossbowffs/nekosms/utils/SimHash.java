@@ -0,0 +1,78 @@
+package com.crossbowffs.nekosms.utils;
+
+/**
+ * Computes 64-bit SimHash fingerprints of text. Unlike a normal hash,
+ * texts that only differ in a few places (e.g. a name or link token)
+ * get fingerprints that only differ in a few bits, so the Hamming
+ * distance between fingerprints approximates how similar the texts
+ * are. The features are the case-folded words of the text, or the
+ * bigrams of CJK text.
+ */
+public final class SimHash {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private SimHash() { }
+
+    public static long compute(CharSequence text) {
+        int[] weights = new int[64];
+        boolean empty = true;
+        TokenList tokens = TokenList.tokenize(text);
+        for (int i = 0; i < tokens.size(); ++i) {
+            String token = tokens.get(i);
+            // CJK text has no spaces, so a "word" can be a whole
+            // sentence; use its bigrams as the features instead
+            boolean cjk = false;
+            for (int j = 1; j < token.length(); ++j) {
+                if (CjkBigrams.isCjk(token.charAt(j - 1)) && CjkBigrams.isCjk(token.charAt(j))) {
+                    addFeature(weights, hash(token, j - 1, j + 1));
+                    cjk = true;
+                }
+            }
+            if (!cjk) {
+                addFeature(weights, hash(token, 0, token.length()));
+            }
+            empty = false;
+        }
+        if (empty) {
+            return 0;
+        }
+
+        long fingerprint = 0;
+        for (int bit = 0; bit < 64; ++bit) {
+            if (weights[bit] > 0) {
+                fingerprint |= 1L << bit;
+            }
+        }
+        return fingerprint;
+    }
+
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    private static void addFeature(int[] weights, long featureHash) {
+        for (int bit = 0; bit < 64; ++bit) {
+            if ((featureHash & (1L << bit)) != 0) {
+                weights[bit]++;
+            } else {
+                weights[bit]--;
+            }
+        }
+    }
+
+    private static long hash(CharSequence text, int start, int end) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = start; i < end; ++i) {
+            hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+        }
+
+        // FNV alone leaves the high bits poorly mixed for short input
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
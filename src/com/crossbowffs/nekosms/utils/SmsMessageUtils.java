@@ -8,8 +8,6 @@ import android.telephony.SmsMessage;
 import java.lang.reflect.Method;
 
 public final class SmsMessageUtils {
-    private static final int SMS_CHARACTER_LIMIT = 160;
-
     private static final Method sGetSubId;
 
     static {
@@ -41,15 +39,17 @@ public final class SmsMessageUtils {
         return 0;
     }
 
-    public static String getMessageBody(SmsMessage[] messageParts) {
+    public static CharSequence getMessageBody(SmsMessage[] messageParts) {
         if (messageParts.length == 1) {
             return messageParts[0].getDisplayMessageBody();
         } else {
-            StringBuilder sb = new StringBuilder(SMS_CHARACTER_LIMIT * messageParts.length);
-            for (SmsMessage messagePart : messageParts) {
-                sb.append(messagePart.getDisplayMessageBody());
+            // The parts are not concatenated until someone actually
+            // needs the full string (e.g. to save a blocked message)
+            String[] bodies = new String[messageParts.length];
+            for (int i = 0; i < messageParts.length; ++i) {
+                bodies[i] = String.valueOf(messageParts[i].getDisplayMessageBody());
             }
-            return sb.toString();
+            return new MultipartCharSequence(bodies);
         }
     }
 }
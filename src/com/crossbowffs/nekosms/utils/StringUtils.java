@@ -3,45 +3,39 @@ package com.crossbowffs.nekosms.utils;
 public final class StringUtils {
     private StringUtils() { }
 
-    public static boolean equals(String a, String b, boolean ignoreCase) {
-        if (ignoreCase) {
-            return a.equalsIgnoreCase(b);
-        } else {
-            return a.equals(b);
+    public static boolean equals(CharSequence a, CharSequence b, boolean ignoreCase) {
+        if (a.length() != b.length()) {
+            return false;
         }
+        return regionMatches(a, 0, b, ignoreCase);
     }
 
-    public static boolean startsWith(String haystack, String needle, boolean ignoreCase) {
-        if (!ignoreCase) {
-            return haystack.startsWith(needle);
-        }
-        return haystack.regionMatches(true, 0, needle, 0, needle.length());
+    public static boolean startsWith(CharSequence haystack, CharSequence needle, boolean ignoreCase) {
+        return regionMatches(haystack, 0, needle, ignoreCase);
     }
 
-    public static boolean endsWith(String haystack, String needle, boolean ignoreCase) {
-        if (!ignoreCase) {
-            return haystack.endsWith(needle);
-        }
-        return haystack.regionMatches(true, haystack.length() - needle.length(), needle, 0, needle.length());
+    public static boolean endsWith(CharSequence haystack, CharSequence needle, boolean ignoreCase) {
+        return regionMatches(haystack, haystack.length() - needle.length(), needle, ignoreCase);
     }
 
-    public static boolean contains(String haystack, String needle, boolean ignoreCase) {
-        if (!ignoreCase) {
-            return haystack.contains(needle);
+    public static boolean contains(CharSequence haystack, CharSequence needle, boolean ignoreCase) {
+        if (!ignoreCase && haystack instanceof String) {
+            return ((String)haystack).contains(needle);
         }
 
         if (needle.length() == 0) {
             return true;
         }
 
-        char needleFirstLower = Character.toLowerCase(needle.charAt(0));
-        char needleFirstUpper = Character.toUpperCase(needle.charAt(0));
+        char needleFirst = needle.charAt(0);
+        char needleFirstLower = Character.toLowerCase(needleFirst);
+        char needleFirstUpper = Character.toUpperCase(needleFirst);
         int end = haystack.length() - needle.length();
 
         for (int i = 0; i <= end; ++i) {
             char c = haystack.charAt(i);
-            if (c == needleFirstLower || c == needleFirstUpper) {
-                if (haystack.regionMatches(true, i, needle, 0, needle.length())) {
+            if (c == needleFirst || (ignoreCase && (c == needleFirstLower || c == needleFirstUpper))) {
+                if (regionMatches(haystack, i, needle, ignoreCase)) {
                     return true;
                 }
             }
@@ -50,6 +44,37 @@ public final class StringUtils {
         return false;
     }
 
+    public static boolean regionMatches(CharSequence haystack, int offset, CharSequence needle, boolean ignoreCase) {
+        // Same semantics as String#regionMatches(), but works on any
+        // CharSequence, so multipart message bodies don't have to be
+        // copied into a single string first.
+        int length = needle.length();
+        if (offset < 0 || offset > haystack.length() - length) {
+            return false;
+        }
+
+        if (haystack instanceof String && needle instanceof String) {
+            return ((String)haystack).regionMatches(ignoreCase, offset, (String)needle, 0, length);
+        }
+
+        for (int i = 0; i < length; ++i) {
+            char a = haystack.charAt(offset + i);
+            char b = needle.charAt(i);
+            if (a == b) {
+                continue;
+            }
+            if (!ignoreCase) {
+                return false;
+            }
+            char upperA = Character.toUpperCase(a);
+            char upperB = Character.toUpperCase(b);
+            if (upperA != upperB && Character.toLowerCase(upperA) != Character.toLowerCase(upperB)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public static String join(String delimiter, Object[] parts) {
         if (parts.length == 0) {
             return "";
@@ -63,7 +88,7 @@ public final class StringUtils {
         return sb.toString();
     }
 
-    public static String escape(String str) {
+    public static String escape(CharSequence str) {
         if (str == null) {
             return null;
         }
@@ -0,0 +1,94 @@
+package com.crossbowffs.nekosms.utils;
+
+import java.util.Locale;
+
+/**
+ * Splits text into words for keyword matching. A word is a run of
+ * letters, digits, and combining marks; everything else is treated
+ * as a separator. Tokens are case-folded so they can be used as hash
+ * keys, and the position of each token in the original text is kept
+ * so that case-sensitive rules can still check the original casing.
+ */
+public class TokenList {
+    private String[] mTokens;
+    private int[] mStarts;
+    private int[] mEnds;
+    private int mCount;
+
+    private TokenList(int capacity) {
+        mTokens = new String[capacity];
+        mStarts = new int[capacity];
+        mEnds = new int[capacity];
+    }
+
+    public static TokenList tokenize(CharSequence text) {
+        TokenList tokens = new TokenList(8);
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i < length; ) {
+            int c = Character.codePointAt(text, i);
+            if (isWordChar(c)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                tokens.add(text, start, i);
+                start = -1;
+            }
+            i += Character.charCount(c);
+        }
+        if (start >= 0) {
+            tokens.add(text, start, length);
+        }
+        return tokens;
+    }
+
+    public static String fold(CharSequence word) {
+        return word.toString().toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isWordChar(int c) {
+        if (Character.isLetterOrDigit(c)) {
+            return true;
+        }
+        int type = Character.getType(c);
+        return type == Character.NON_SPACING_MARK ||
+               type == Character.COMBINING_SPACING_MARK ||
+               type == Character.ENCLOSING_MARK;
+    }
+
+    private void add(CharSequence text, int start, int end) {
+        if (mCount == mTokens.length) {
+            int capacity = mCount * 2;
+            String[] tokens = new String[capacity];
+            int[] starts = new int[capacity];
+            int[] ends = new int[capacity];
+            System.arraycopy(mTokens, 0, tokens, 0, mCount);
+            System.arraycopy(mStarts, 0, starts, 0, mCount);
+            System.arraycopy(mEnds, 0, ends, 0, mCount);
+            mTokens = tokens;
+            mStarts = starts;
+            mEnds = ends;
+        }
+        mTokens[mCount] = fold(text.subSequence(start, end));
+        mStarts[mCount] = start;
+        mEnds[mCount] = end;
+        mCount++;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public String get(int index) {
+        return mTokens[index];
+    }
+
+    public int getStart(int index) {
+        return mStarts[index];
+    }
+
+    public int getEnd(int index) {
+        return mEnds[index];
+    }
+}
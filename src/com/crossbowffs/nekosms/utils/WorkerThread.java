@@ -0,0 +1,60 @@
+package com.crossbowffs.nekosms.utils;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Background thread for everything the module does in the phone
+ * process that is not part of handling a message: content observers,
+ * broadcast receivers, loading filters and contacts, and exporting
+ * statistics. Keeping all of it on one thread means none of it runs
+ * on (or queues behind) the telephony thread, and the module only
+ * adds a single thread to the phone process.
+ *
+ * Since there is only one thread, work posted here must never wait
+ * for other work posted here; use {@link #isCurrentThread()} to run
+ * it inline instead.
+ */
+public class WorkerThread {
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            if (!mHandler.post(command)) {
+                throw new RejectedExecutionException("Worker thread has been shut down");
+            }
+        }
+    };
+
+    public WorkerThread(String name) {
+        mThread = new HandlerThread(name);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    public Executor getExecutor() {
+        return mExecutor;
+    }
+
+    public boolean isCurrentThread() {
+        return Looper.myLooper() == mThread.getLooper();
+    }
+
+    /**
+     * Stops the thread once all work that has already been posted
+     * (e.g. final flushes) has run. Anything posted afterwards is
+     * dropped.
+     */
+    public void quit() {
+        mThread.quitSafely();
+    }
+}
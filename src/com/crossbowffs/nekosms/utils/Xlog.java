@@ -8,8 +8,25 @@ public final class Xlog {
     private static final int LOG_LEVEL = BuildConfig.LOG_LEVEL;
     private static final boolean LOG_TO_XPOSED = BuildConfig.LOG_TO_XPOSED;
 
+    // Whether verbose messages are logged in this build. This is a
+    // compile-time constant, so code guarded by it (e.g. "if (Xlog.VERBOSE)
+    // {...}") is left out of builds that don't log verbose messages
+    // entirely. Callers should use it whenever computing the log arguments
+    // costs anything, since the arguments are evaluated (and boxed into a
+    // varargs array) before the level is checked.
+    public static final boolean VERBOSE = Log.VERBOSE >= LOG_LEVEL;
+
     private Xlog() { }
 
+    private static void log(int priority, String message) {
+        // Fast path for messages without arguments, which doesn't
+        // need a varargs array and doesn't format the message
+        if (priority < LOG_LEVEL) {
+            return;
+        }
+        write(priority, message);
+    }
+
     private static void log(int priority, String message, Object... args) {
         if (priority < LOG_LEVEL) {
             return;
@@ -28,6 +45,10 @@ public final class Xlog {
             message += '\n' + stacktraceStr;
         }
 
+        write(priority, message);
+    }
+
+    private static void write(int priority, String message) {
         // Write to the default log tag
         Log.println(priority, LOG_TAG, message);
 
@@ -37,22 +58,42 @@ public final class Xlog {
         }
     }
 
+    public static void v(String message) {
+        log(Log.VERBOSE, message);
+    }
+
     public static void v(String message, Object... args) {
         log(Log.VERBOSE, message, args);
     }
 
+    public static void d(String message) {
+        log(Log.DEBUG, message);
+    }
+
     public static void d(String message, Object... args) {
         log(Log.DEBUG, message, args);
     }
 
+    public static void i(String message) {
+        log(Log.INFO, message);
+    }
+
     public static void i(String message, Object... args) {
         log(Log.INFO, message, args);
     }
 
+    public static void w(String message) {
+        log(Log.WARN, message);
+    }
+
     public static void w(String message, Object... args) {
         log(Log.WARN, message, args);
     }
 
+    public static void e(String message) {
+        log(Log.ERROR, message);
+    }
+
     public static void e(String message, Object... args) {
         log(Log.ERROR, message, args);
     }
@@ -0,0 +1,361 @@
+package com.crossbowffs.nekosms.xposed;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Handler;
+import com.crossbowffs.nekosms.BuildConfig;
+import com.crossbowffs.nekosms.consts.BroadcastConsts;
+import com.crossbowffs.nekosms.data.SmsEvent;
+import com.crossbowffs.nekosms.data.SmsHookStage;
+import com.crossbowffs.nekosms.data.SmsMessageData;
+import com.crossbowffs.nekosms.filters.SmsEventLog;
+import com.crossbowffs.nekosms.loader.BlockedSmsLoader;
+import com.crossbowffs.nekosms.utils.WorkerThread;
+import com.crossbowffs.nekosms.utils.Xlog;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Write-behind queue for saving blocked messages to the app's
+ * database. Messages are first appended to a journal file in the
+ * phone process, which only takes a local write, and are then
+ * inserted into the database in batches on a background thread.
+ * A message is only removed from the journal once it has been
+ * inserted, so if the provider is unavailable (e.g. the app is being
+ * updated) or the phone process dies, it is retried later.
+ *
+ * New messages are always appended to the active journal. When
+ * draining, the active journal is first renamed, so appending never
+ * has to wait for the database. If inserting fails, the renamed
+ * journal is kept and drained again before the next one.
+ *
+ * Records are only ever appended after the last valid record: a
+ * record torn by a failed write is cut off right away, and one torn
+ * by a crash is cut off when the journal is opened again. Otherwise
+ * every record appended after it would be unreadable.
+ */
+/* package */ class BlockedSmsQueue {
+    private static final String NEKOSMS_PACKAGE = BuildConfig.APPLICATION_ID;
+    private static final String JOURNAL_NAME = "nekosms_blocked.journal";
+    private static final String DRAINING_NAME = "nekosms_blocked.journal.draining";
+    private static final String REWRITE_NAME = "nekosms_blocked.journal.rewrite";
+    private static final int RECORD_VERSION = 1;
+
+    // Give bursts of messages a chance to be inserted in one batch
+    private static final long DRAIN_DELAY_MILLIS = 500;
+    private static final long MIN_RETRY_DELAY_MILLIS = 5 * 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 60 * 60 * 1000;
+    // Keep each insert and broadcast well under the binder transaction
+    // limit, even after a long backlog has built up in the journal
+    private static final int MAX_MESSAGES_PER_INSERT = 50;
+
+    private final Context mContext;
+    private final HookStageTimings mTimings;
+    private final SmsEventLog mEventLog;
+    private final File mJournalFile;
+    private final File mDrainingFile;
+    private final File mRewriteFile;
+    private final Handler mHandler;
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+    private long mRetryDelay;
+
+    public BlockedSmsQueue(Context context, WorkerThread worker, HookStageTimings timings, SmsEventLog eventLog) {
+        mContext = context;
+        mTimings = timings;
+        mEventLog = eventLog;
+        mJournalFile = new File(context.getFilesDir(), JOURNAL_NAME);
+        mDrainingFile = new File(context.getFilesDir(), DRAINING_NAME);
+        mRewriteFile = new File(context.getFilesDir(), REWRITE_NAME);
+        mHandler = worker.getHandler();
+
+        // Messages left over from before the process was restarted.
+        // This must happen before anything is appended to the journal.
+        if (mJournalFile.exists()) {
+            truncateJournal();
+        }
+        if (mJournalFile.exists() || mDrainingFile.exists()) {
+            Xlog.i("Found blocked messages from previous session, draining");
+            mHandler.post(mDrainRunnable);
+        }
+    }
+
+    /**
+     * Saves a blocked message. When this returns, the message is
+     * guaranteed to be on disk, though not necessarily in the app's
+     * database yet.
+     */
+    public void add(SmsMessageData message) {
+        try {
+            append(message);
+        } catch (IOException e) {
+            // Better to block the thread than to lose the message
+            Xlog.e("Failed to write blocked message to journal, inserting directly", e);
+            mEventLog.record(SmsEvent.TYPE_ERROR, SmsEvent.ERROR_JOURNAL_WRITE, 0);
+            Uri messageUri = BlockedSmsLoader.get().insert(mContext, message);
+            if (messageUri != null) {
+                broadcastBlockedSms(new Uri[] {messageUri});
+                return;
+            }
+
+            // One more try at the journal. If that fails too, throwing
+            // makes the hook leave the message alone, so that it still
+            // gets delivered to the inbox instead of being lost.
+            Xlog.e("Failed to insert blocked message, retrying journal");
+            try {
+                append(message);
+            } catch (IOException e2) {
+                throw new IllegalStateException("Failed to save blocked message", e2);
+            }
+        }
+        scheduleDrain(DRAIN_DELAY_MILLIS);
+    }
+
+    private synchronized void append(SmsMessageData message) throws IOException {
+        byte[] record = encodeRecord(message);
+        try (FileOutputStream fileOut = new FileOutputStream(mJournalFile, true)) {
+            long validLength = fileOut.getChannel().size();
+            try {
+                fileOut.write(record);
+                fileOut.getFD().sync();
+            } catch (IOException e) {
+                try {
+                    fileOut.getChannel().truncate(validLength);
+                } catch (IOException e2) {
+                    Xlog.e("Failed to remove torn record from blocked message journal", e2);
+                }
+                throw e;
+            }
+        }
+    }
+
+    private synchronized void truncateJournal() {
+        long validLength = readJournal(mJournalFile, null);
+        if (validLength == mJournalFile.length()) {
+            return;
+        }
+        Xlog.w("Removing torn record from blocked message journal");
+        try (RandomAccessFile file = new RandomAccessFile(mJournalFile, "rw")) {
+            file.setLength(validLength);
+        } catch (IOException e) {
+            // Better to start over than to append after the torn
+            // record, which would make everything after it unreadable
+            Xlog.e("Failed to truncate blocked message journal, draining it first", e);
+            if (!mDrainingFile.exists() && !mJournalFile.renameTo(mDrainingFile)) {
+                Xlog.e("Failed to rename blocked message journal");
+            }
+        }
+    }
+
+    private static byte[] encodeRecord(SmsMessageData message) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeInt(RECORD_VERSION);
+        writeString(out, message.getSender());
+        writeString(out, message.getBody());
+        out.writeLong(message.getTimeSent());
+        out.writeLong(message.getTimeReceived());
+        out.writeInt(message.getSubId());
+        out.flush();
+
+        // Each record is prefixed with its length and checksum, so
+        // a record torn by a crash in the middle of a write can be
+        // detected when reading the journal back
+        byte[] data = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(data.length + 8);
+        DataOutputStream recordOut = new DataOutputStream(record);
+        recordOut.writeInt(data.length);
+        recordOut.writeInt((int)crc.getValue());
+        recordOut.write(data);
+        recordOut.flush();
+        return record.toByteArray();
+    }
+
+    private boolean rewriteJournal(File file, List<SmsMessageData> messages) {
+        try (FileOutputStream fileOut = new FileOutputStream(mRewriteFile)) {
+            for (SmsMessageData message : messages) {
+                fileOut.write(encodeRecord(message));
+            }
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            Xlog.e("Failed to rewrite blocked message journal", e);
+            return false;
+        }
+        return mRewriteFile.renameTo(file);
+    }
+
+    private synchronized boolean rotateJournal() {
+        // Only start a new batch once the previous one has been
+        // fully inserted, otherwise it would be overwritten
+        if (mDrainingFile.exists()) {
+            return true;
+        }
+        if (!mJournalFile.exists()) {
+            return false;
+        }
+        if (!mJournalFile.renameTo(mDrainingFile)) {
+            Xlog.e("Failed to rename blocked message journal");
+            return false;
+        }
+        return true;
+    }
+
+    private void scheduleDrain(long delayMillis) {
+        mHandler.removeCallbacks(mDrainRunnable);
+        mHandler.postDelayed(mDrainRunnable, delayMillis);
+    }
+
+    private void drain() {
+        while (rotateJournal()) {
+            ArrayList<SmsMessageData> messages = new ArrayList<>();
+            readJournal(mDrainingFile, messages);
+            int inserted = 0;
+            while (inserted < messages.size()) {
+                int count = Math.min(MAX_MESSAGES_PER_INSERT, messages.size() - inserted);
+                List<SmsMessageData> batch = messages.subList(inserted, inserted + count);
+                Uri[] messageUris;
+                long startTime = System.nanoTime();
+                try {
+                    messageUris = BlockedSmsLoader.get().insertAll(mContext, batch);
+                } catch (Exception e) {
+                    int remaining = messages.size() - inserted;
+                    mRetryDelay = Math.min(Math.max(mRetryDelay * 2, MIN_RETRY_DELAY_MILLIS), MAX_RETRY_DELAY_MILLIS);
+                    Xlog.e("Failed to insert %d blocked messages, retrying in %dms", remaining, mRetryDelay, e);
+                    mEventLog.record(SmsEvent.TYPE_ERROR, SmsEvent.ERROR_INSERT, remaining);
+
+                    // Drop the messages that were already inserted, so
+                    // they don't show up twice. If this fails, they will,
+                    // which is still better than losing the rest.
+                    if (inserted > 0) {
+                        rewriteJournal(mDrainingFile, messages.subList(inserted, messages.size()));
+                    }
+                    scheduleDrain(mRetryDelay);
+                    return;
+                }
+                inserted += count;
+                Xlog.i("Inserted %d blocked messages", count);
+                startTime = mTimings.record(SmsHookStage.INSERT, startTime);
+                broadcastBlockedSms(messageUris);
+                mTimings.record(SmsHookStage.BROADCAST, startTime);
+            }
+            mRetryDelay = 0;
+
+            // If we die before this, the messages will be inserted
+            // again, which is better than losing them
+            if (!mDrainingFile.delete()) {
+                Xlog.e("Failed to delete drained blocked message journal");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the records in the journal into the given list (which may
+     * be null to only check the journal), and returns the length of
+     * the journal up to the end of the last valid record.
+     */
+    private static long readJournal(File file, List<SmsMessageData> messages) {
+        long validLength = 0;
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int checksum = in.readInt();
+                if (length < 0 || length > file.length()) {
+                    throw new IOException("Invalid record length: " + length);
+                }
+                byte[] data = new byte[length];
+                in.readFully(data);
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                if ((int)crc.getValue() != checksum) {
+                    throw new IOException("Record checksum mismatch");
+                }
+                validLength += 8 + length;
+                count++;
+                if (messages != null) {
+                    SmsMessageData message = readRecord(data);
+                    if (message != null) {
+                        messages.add(message);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Only the last record can be torn, since we sync after
+            // each one and never append after a torn record, so
+            // everything before it is still valid
+            Xlog.e("Blocked message journal is truncated or corrupt, recovered %d records", count, e);
+        }
+        return validLength;
+    }
+
+    private static SmsMessageData readRecord(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int version = in.readInt();
+        if (version != RECORD_VERSION) {
+            Xlog.e("Unknown blocked message record version: %d", version);
+            return null;
+        }
+        SmsMessageData message = new SmsMessageData();
+        message.setSender(readString(in));
+        message.setBody(readString(in));
+        message.setTimeSent(in.readLong());
+        message.setTimeReceived(in.readLong());
+        message.setSubId(in.readInt());
+        message.setRead(false);
+        message.setSeen(false);
+        return message;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        // writeUTF() is limited to 64KB, which long messages could exceed
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private void broadcastBlockedSms(Uri[] messageUris) {
+        // Permissions are not required here since we are only
+        // broadcasting the URIs of the messages, not the message
+        // contents. The provider requires permissions to read
+        // the actual message contents.
+        //
+        // Each broadcast carries a whole insert batch, so that
+        // during a burst the app only updates its notifications once
+        // per batch instead of once per message.
+        Intent intent = new Intent(BroadcastConsts.ACTION_RECEIVE_SMS);
+        intent.setComponent(new ComponentName(NEKOSMS_PACKAGE, BroadcastConsts.RECEIVER_NAME));
+        intent.putExtra(BroadcastConsts.EXTRA_MESSAGES, messageUris);
+        mContext.sendBroadcast(intent);
+    }
+}
@@ -0,0 +1,204 @@
+package com.crossbowffs.nekosms.xposed;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.provider.ContactsContract;
+import android.telephony.PhoneNumberUtils;
+import android.util.SparseArray;
+import com.crossbowffs.nekosms.utils.ContactUtils;
+import com.crossbowffs.nekosms.utils.WorkerThread;
+import com.crossbowffs.nekosms.utils.Xlog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * In-memory set of the phone numbers in the user's contacts, so that
+ * the contact whitelist does not need a provider query per message.
+ * Numbers are looked up by their last few digits, which is how the
+ * contacts provider itself finds candidates for a lookup. Like the
+ * provider, a candidate only counts as a match once the full numbers
+ * have been compared, so that a number that merely ends the same way
+ * as a contact's is not whitelisted.
+ *
+ * The set is built on a background thread the first time it is
+ * needed, and is thrown away and rebuilt whenever the contacts
+ * change. Until it is ready, lookups fall back to querying the
+ * contacts provider directly, which the caller can stop waiting for.
+ */
+/* package */ class ContactNumberCache {
+    // Contact syncs tend to send many change notifications in a row
+    private static final long REBUILD_DELAY_MILLIS = 2000;
+    private static final long MIN_RETRY_DELAY_MILLIS = 5 * 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 60 * 60 * 1000;
+
+    private final Context mContext;
+    private final WorkerThread mWorker;
+    private final Handler mHandler;
+    private final Runnable mRebuildRunnable = new Runnable() {
+        @Override
+        public void run() {
+            rebuild();
+        }
+    };
+    private ContentObserver mContentObserver;
+    private volatile SparseArray<List<String>> mNumbers;
+    private int mGeneration;
+    private long mRetryDelay;
+
+    public ContactNumberCache(Context context, WorkerThread worker) {
+        mContext = context;
+        mWorker = worker;
+        mHandler = worker.getHandler();
+    }
+
+    /**
+     * Returns whether the number belongs to a contact. Throws
+     * {@link TimeoutException} if the cache is not ready and querying
+     * the contacts provider takes longer than the given time.
+     */
+    public boolean isContact(String number, long timeoutNanos) throws TimeoutException {
+        if (number == null) {
+            return false;
+        }
+
+        // The observer is only registered once the whitelist is
+        // actually used, so we don't track contacts for nothing
+        synchronized (this) {
+            if (mContentObserver == null) {
+                Xlog.i("Building contact number cache");
+                mContentObserver = registerContentObserver();
+                mHandler.post(mRebuildRunnable);
+            }
+        }
+
+        int key = ContactUtils.getMinMatchKey(number);
+        SparseArray<List<String>> numbers = mNumbers;
+        if (numbers == null || key == 0) {
+            return queryContact(number, timeoutNanos);
+        }
+
+        List<String> candidates = numbers.get(key);
+        if (candidates == null) {
+            return false;
+        }
+        for (String candidate : candidates) {
+            if (PhoneNumberUtils.compare(mContext, number, candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean queryContact(final String number, long timeoutNanos) throws TimeoutException {
+        if (mWorker.isCurrentThread()) {
+            return ContactUtils.isContact(mContext, number);
+        }
+
+        FutureTask<Boolean> query = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return ContactUtils.isContact(mContext, number);
+            }
+        });
+
+        // Runs on the worker thread so that the query can outlive the
+        // caller giving up on it; it goes ahead of any pending work
+        mHandler.postAtFrontOfQueue(query);
+        try {
+            return query.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TimeoutException("Interrupted while querying contacts");
+        } catch (ExecutionException e) {
+            Xlog.e("Failed to query contacts", e);
+            return false;
+        }
+    }
+
+    private synchronized void invalidate() {
+        mGeneration++;
+        mNumbers = null;
+        mHandler.removeCallbacks(mRebuildRunnable);
+        mHandler.postDelayed(mRebuildRunnable, REBUILD_DELAY_MILLIS);
+    }
+
+    private void rebuild() {
+        int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+
+        // Until a load succeeds, lookups keep querying the provider
+        // directly, so keep retrying rather than giving up for good
+        SparseArray<List<String>> numbers = loadNumbers();
+        if (numbers == null) {
+            mRetryDelay = Math.min(Math.max(mRetryDelay * 2, MIN_RETRY_DELAY_MILLIS), MAX_RETRY_DELAY_MILLIS);
+            Xlog.e("Retrying contact number cache in %dms", mRetryDelay);
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    mHandler.postDelayed(mRebuildRunnable, mRetryDelay);
+                }
+            }
+            return;
+        }
+        mRetryDelay = 0;
+
+        // If the contacts changed while we were loading them, another
+        // rebuild has already been scheduled, so just drop this one
+        synchronized (this) {
+            if (generation == mGeneration) {
+                Xlog.i("Loaded contact numbers for %d keys", numbers.size());
+                mNumbers = numbers;
+            }
+        }
+    }
+
+    private SparseArray<List<String>> loadNumbers() {
+        String[] projection = {ContactsContract.CommonDataKinds.Phone.NUMBER};
+        try (Cursor cursor = mContext.getContentResolver().query(
+            ContactsContract.CommonDataKinds.Phone.CONTENT_URI, projection, null, null, null)) {
+            if (cursor == null) {
+                Xlog.e("Failed to load contact numbers (query returned null)");
+                return null;
+            }
+
+            SparseArray<List<String>> numbers = new SparseArray<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                String number = cursor.getString(0);
+                if (number == null) {
+                    continue;
+                }
+                int key = ContactUtils.getMinMatchKey(number);
+                if (key == 0) {
+                    continue;
+                }
+                List<String> candidates = numbers.get(key);
+                if (candidates == null) {
+                    candidates = new ArrayList<>(1);
+                    numbers.put(key, candidates);
+                }
+                candidates.add(PhoneNumberUtils.stripSeparators(number));
+            }
+            return numbers;
+        } catch (Exception e) {
+            Xlog.e("Failed to load contact numbers", e);
+            return null;
+        }
+    }
+
+    private ContentObserver registerContentObserver() {
+        ContentObserver contentObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                Xlog.v("Contacts updated, rebuilding contact number cache");
+                invalidate();
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(ContactsContract.AUTHORITY_URI, true, contentObserver);
+        return contentObserver;
+    }
+}
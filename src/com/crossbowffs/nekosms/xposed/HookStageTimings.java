@@ -0,0 +1,120 @@
+package com.crossbowffs.nekosms.xposed;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import com.crossbowffs.nekosms.data.SmsEvent;
+import com.crossbowffs.nekosms.data.SmsHookStage;
+import com.crossbowffs.nekosms.filters.SmsEventLog;
+import com.crossbowffs.nekosms.loader.DiagnosticsLoader;
+import com.crossbowffs.nekosms.utils.LatencyHistogram;
+import com.crossbowffs.nekosms.utils.WorkerThread;
+import com.crossbowffs.nekosms.utils.Xlog;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.crossbowffs.nekosms.provider.DatabaseContract.Diagnostics;
+
+/**
+ * Records how long each stage of processing a message takes, so that
+ * the app can show how much the module adds to SMS delivery. Each
+ * stage has a fixed-size histogram, so recording a sample only costs
+ * reading the clock and incrementing a counter. The percentiles are
+ * exported to the app's provider in the background after a delay,
+ * along with how often each stage went over the latency budget.
+ */
+/* package */ class HookStageTimings {
+    private static final long EXPORT_DELAY_MS = 60 * 1000;
+    private static final SmsHookStage[] STAGES = SmsHookStage.values();
+
+    private final Context mContext;
+    private final SmsEventLog mEventLog;
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGES.length];
+    private final AtomicLongArray mFailOpenCounts = new AtomicLongArray(STAGES.length);
+    private final AtomicBoolean mExportScheduled = new AtomicBoolean();
+    private final Handler mExportHandler;
+    private final Runnable mExportRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mExportScheduled.set(false);
+            export();
+        }
+    };
+
+    public HookStageTimings(Context context, WorkerThread worker, SmsEventLog eventLog) {
+        mContext = context;
+        mEventLog = eventLog;
+        for (int i = 0; i < mHistograms.length; ++i) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+        mExportHandler = worker.getHandler();
+    }
+
+    /**
+     * Records the time from {@code startNanos} until now for the
+     * given stage, and returns the current time, so that it can be
+     * passed as the start of the next stage.
+     */
+    public long record(SmsHookStage stage, long startNanos) {
+        long now = System.nanoTime();
+        mHistograms[stage.ordinal()].record(now - startNanos);
+        mEventLog.record(SmsEvent.TYPE_STAGE, stage.ordinal(), now - startNanos);
+        scheduleExport();
+        return now;
+    }
+
+    /**
+     * Records that a message was allowed without finishing the given
+     * stage, because it would have gone over the latency budget.
+     */
+    public void recordFailOpen(SmsHookStage stage) {
+        mFailOpenCounts.incrementAndGet(stage.ordinal());
+        scheduleExport();
+    }
+
+    private void scheduleExport() {
+        if (mExportScheduled.compareAndSet(false, true)) {
+            mExportHandler.postDelayed(mExportRunnable, EXPORT_DELAY_MS);
+        }
+    }
+
+    private Bundle getTimings() {
+        String[] stages = new String[STAGES.length];
+        long[] sampleCounts = new long[STAGES.length];
+        long[] p50Nanos = new long[STAGES.length];
+        long[] p95Nanos = new long[STAGES.length];
+        long[] p99Nanos = new long[STAGES.length];
+        long[] failOpenCounts = new long[STAGES.length];
+        for (int i = 0; i < STAGES.length; ++i) {
+            int[] counts = mHistograms[i].getCounts();
+            stages[i] = STAGES[i].name();
+            sampleCounts[i] = LatencyHistogram.getTotalCount(counts);
+            p50Nanos[i] = LatencyHistogram.getValueAtPercentile(counts, 50);
+            p95Nanos[i] = LatencyHistogram.getValueAtPercentile(counts, 95);
+            p99Nanos[i] = LatencyHistogram.getValueAtPercentile(counts, 99);
+            failOpenCounts[i] = mFailOpenCounts.get(i);
+        }
+
+        Bundle timings = new Bundle(6);
+        timings.putStringArray(Diagnostics.EXTRA_STAGES, stages);
+        timings.putLongArray(Diagnostics.EXTRA_SAMPLE_COUNTS, sampleCounts);
+        timings.putLongArray(Diagnostics.EXTRA_P50_NANOS, p50Nanos);
+        timings.putLongArray(Diagnostics.EXTRA_P95_NANOS, p95Nanos);
+        timings.putLongArray(Diagnostics.EXTRA_P99_NANOS, p99Nanos);
+        timings.putLongArray(Diagnostics.EXTRA_FAIL_OPEN_COUNTS, failOpenCounts);
+        return timings;
+    }
+
+    private void export() {
+        // The histograms are cumulative, so it doesn't matter if
+        // the app process died and lost the previous export.
+        Xlog.i("Exporting SMS processing timings");
+        try {
+            DiagnosticsLoader.put(mContext, Diagnostics.KEY_STAGE_TIMINGS, getTimings());
+        } catch (Exception e) {
+            Xlog.e("Failed to export SMS processing timings", e);
+            scheduleExport();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.crossbowffs.nekosms.xposed;
+
+import android.os.SystemClock;
+import com.crossbowffs.nekosms.consts.PreferenceConsts;
+import com.crossbowffs.nekosms.utils.Xlog;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Immutable copy of the preferences used by the hook, so that
+ * evaluating a message reads plain fields instead of making a
+ * cross-process call per preference. All preferences are read
+ * at once from the map returned by RemotePreferences#getAll().
+ */
+/* package */ class PreferenceSnapshot {
+    // Changes should be picked up through the content observer, this
+    // only bounds how stale the snapshot can get if one is missed
+    private static final long MAX_AGE_MILLIS = 60 * 1000;
+
+    private final long mLoadTime;
+    private final boolean mEnabled;
+    private final boolean mVerboseLogging;
+    private final boolean mWhitelistContacts;
+    private final boolean mProfileFilters;
+    private final int mFloodThreshold;
+    private final int mLatencyBudgetMillis;
+    private final int mFilterMemoryBudgetKb;
+
+    public PreferenceSnapshot(Map<String, ?> prefs) {
+        mLoadTime = SystemClock.elapsedRealtime();
+        mEnabled = getBoolean(prefs, PreferenceConsts.KEY_ENABLE, PreferenceConsts.KEY_ENABLE_DEFAULT);
+        mVerboseLogging = getBoolean(prefs, PreferenceConsts.KEY_VERBOSE_LOGGING, PreferenceConsts.KEY_VERBOSE_LOGGING_DEFAULT);
+        mWhitelistContacts = getBoolean(prefs, PreferenceConsts.KEY_WHITELIST_CONTACTS, PreferenceConsts.KEY_WHITELIST_CONTACTS_DEFAULT);
+        mProfileFilters = getBoolean(prefs, PreferenceConsts.KEY_PROFILE_FILTERS, PreferenceConsts.KEY_PROFILE_FILTERS_DEFAULT);
+        mFloodThreshold = getInt(prefs, PreferenceConsts.KEY_FLOOD_THRESHOLD, PreferenceConsts.KEY_FLOOD_THRESHOLD_DEFAULT);
+        mLatencyBudgetMillis = getInt(prefs, PreferenceConsts.KEY_LATENCY_BUDGET, PreferenceConsts.KEY_LATENCY_BUDGET_DEFAULT);
+        mFilterMemoryBudgetKb = getInt(prefs, PreferenceConsts.KEY_FILTER_MEMORY_BUDGET, PreferenceConsts.KEY_FILTER_MEMORY_BUDGET_DEFAULT);
+    }
+
+    public static PreferenceSnapshot defaults() {
+        return new PreferenceSnapshot(Collections.<String, Object>emptyMap());
+    }
+
+    private static boolean getBoolean(Map<String, ?> prefs, String key, boolean defValue) {
+        Object value = prefs.get(key);
+        if (value instanceof Boolean) {
+            return (Boolean)value;
+        }
+        return defValue;
+    }
+
+    private static int getInt(Map<String, ?> prefs, String key, String defValue) {
+        // List preferences are stored as strings
+        Object value = prefs.get(key);
+        if (value instanceof String) {
+            try {
+                return Integer.parseInt((String)value);
+            } catch (NumberFormatException e) {
+                Xlog.e("Invalid integer preference: %s", key, e);
+            }
+        }
+        return Integer.parseInt(defValue);
+    }
+
+    public boolean isExpired() {
+        return SystemClock.elapsedRealtime() - mLoadTime > MAX_AGE_MILLIS;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public boolean isVerboseLogging() {
+        return mVerboseLogging;
+    }
+
+    public boolean isWhitelistContacts() {
+        return mWhitelistContacts;
+    }
+
+    public boolean isProfileFilters() {
+        return mProfileFilters;
+    }
+
+    public int getFloodThreshold() {
+        return mFloodThreshold;
+    }
+
+    /**
+     * Returns how long the hook may wait on the filters or contacts
+     * being loaded before allowing the message, or 0 for no limit.
+     */
+    public int getLatencyBudgetMillis() {
+        return mLatencyBudgetMillis;
+    }
+
+    /**
+     * Returns how much memory (in KB) the loaded filters may use
+     * before rarely used compiled patterns are released, or 0 for
+     * no limit.
+     */
+    public int getFilterMemoryBudgetKb() {
+        return mFilterMemoryBudgetKb;
+    }
+}
@@ -1,23 +1,27 @@
 package com.crossbowffs.nekosms.xposed;
 
 import android.content.BroadcastReceiver;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.UserHandle;
 import android.provider.Telephony;
+import android.telephony.SmsMessage;
 import com.crossbowffs.nekosms.BuildConfig;
-import com.crossbowffs.nekosms.consts.BroadcastConsts;
 import com.crossbowffs.nekosms.consts.PreferenceConsts;
+import com.crossbowffs.nekosms.data.SmsEvent;
+import com.crossbowffs.nekosms.data.SmsHookStage;
 import com.crossbowffs.nekosms.data.SmsMessageData;
+import com.crossbowffs.nekosms.filters.FloodDetector;
+import com.crossbowffs.nekosms.filters.SmsEventLog;
 import com.crossbowffs.nekosms.filters.SmsFilterLoader;
-import com.crossbowffs.nekosms.loader.BlockedSmsLoader;
+import com.crossbowffs.nekosms.filters.SmsFilterSnapshot;
 import com.crossbowffs.nekosms.utils.*;
 import com.crossbowffs.remotepreferences.RemotePreferenceAccessException;
 import com.crossbowffs.remotepreferences.RemotePreferences;
@@ -27,7 +31,7 @@ import de.robv.android.xposed.XposedBridge;
 import de.robv.android.xposed.XposedHelpers;
 import de.robv.android.xposed.callbacks.XC_LoadPackage;
 
-import java.lang.reflect.Method;
+import java.util.concurrent.TimeoutException;
 
 public class SmsHandlerHook implements IXposedHookLoadPackage {
     private class ConstructorHook extends XC_MethodHook {
@@ -55,6 +59,9 @@ public class SmsHandlerHook implements IXposedHookLoadPackage {
                 beforeDispatchIntentHandler(param, mReceiverIndex);
             } catch (Throwable e) {
                 Xlog.e("Error occurred in dispatchIntent() hook", e);
+                if (mEventLog != null) {
+                    mEventLog.record(SmsEvent.TYPE_ERROR, SmsEvent.ERROR_HOOK, 0);
+                }
                 throw e;
             }
         }
@@ -66,18 +73,17 @@ public class SmsHandlerHook implements IXposedHookLoadPackage {
     private static final int MARK_DELETED = 2;
     private static final int EVENT_BROADCAST_COMPLETE = 3;
 
+    private SmsHandlerReflection mReflection;
     private Context mContext;
     private SmsFilterLoader mFilterLoader;
+    private FloodDetector mFloodDetector;
+    private WorkerThread mWorker;
+    private SmsEventLog mEventLog;
+    private HookStageTimings mTimings;
+    private BlockedSmsQueue mBlockedSmsQueue;
+    private ContactNumberCache mContactNumberCache;
     private RemotePreferences mPreferences;
-
-    private static Object callDeclaredMethod(String clsName, Object obj, String methodName, Object... args) {
-        // Unlike Xposed's built-in callMethod, this one searches
-        // for private methods as well, in the specified class
-        // (which must be assignable from the object).
-        Class<?> cls = XposedHelpers.findClass(clsName, obj.getClass().getClassLoader());
-        Method method = XposedHelpers.findMethodBestMatch(cls, methodName, args);
-        return ReflectionUtils.invoke(method, obj, args);
-    }
+    private volatile PreferenceSnapshot mPreferenceSnapshot;
 
     private void grantWriteSmsPermissions(Context context) {
         // We need to grant OP_WRITE_SMS permissions to the app
@@ -113,33 +119,14 @@ public class SmsHandlerHook implements IXposedHookLoadPackage {
         }
     }
 
-    private void deleteFromRawTable19(Object smsHandler, Object smsReceiver) {
-        Xlog.i("Removing raw SMS data from database for Android v19+");
-        callDeclaredMethod(SMS_HANDLER_CLASS, smsHandler, "deleteFromRawTable",
-            /*     deleteWhere */ XposedHelpers.getObjectField(smsReceiver, "mDeleteWhere"),
-            /* deleteWhereArgs */ XposedHelpers.getObjectField(smsReceiver, "mDeleteWhereArgs"));
-    }
-
-    private void deleteFromRawTable24(Object smsHandler, Object smsReceiver) {
-        Xlog.i("Removing raw SMS data from database for Android v24+");
-        callDeclaredMethod(SMS_HANDLER_CLASS, smsHandler, "deleteFromRawTable",
-            /*     deleteWhere */ XposedHelpers.getObjectField(smsReceiver, "mDeleteWhere"),
-            /* deleteWhereArgs */ XposedHelpers.getObjectField(smsReceiver, "mDeleteWhereArgs"),
-            /*      deleteType */ MARK_DELETED);
-    }
-
     private void deleteFromRawTable(Object smsHandler, Object smsReceiver) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            deleteFromRawTable24(smsHandler, smsReceiver);
-        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            deleteFromRawTable19(smsHandler, smsReceiver);
-        }
+        Xlog.i("Removing raw SMS data from database");
+        mReflection.deleteFromRawTable(smsHandler, smsReceiver, MARK_DELETED);
     }
 
     private void sendBroadcastComplete(Object smsHandler) {
         Xlog.i("Notifying completion of SMS broadcast");
-        XposedHelpers.callMethod(smsHandler, "sendMessage",
-            /* what */ EVENT_BROADCAST_COMPLETE);
+        mReflection.sendMessage(smsHandler, EVENT_BROADCAST_COMPLETE);
     }
 
     private void finishSmsBroadcast(Object smsHandler, Object smsReceiver) {
@@ -155,39 +142,64 @@ public class SmsHandlerHook implements IXposedHookLoadPackage {
         sendBroadcastComplete(smsHandler);
     }
 
-    private void broadcastBlockedSms(Uri messageUri) {
-        // Permissions are not required here since we are only
-        // broadcasting the URI of the message, not the message
-        // contents. The provider requires permissions to read
-        // the actual message contents.
-        Intent intent = new Intent(BroadcastConsts.ACTION_RECEIVE_SMS);
-        intent.setComponent(new ComponentName(NEKOSMS_PACKAGE, BroadcastConsts.RECEIVER_NAME));
-        intent.putExtra(BroadcastConsts.EXTRA_MESSAGE, messageUri);
-        mContext.sendBroadcast(intent);
-    }
+    private PreferenceSnapshot getPreferences() {
+        PreferenceSnapshot prefs = mPreferenceSnapshot;
+        if (prefs != null && !prefs.isExpired()) {
+            return prefs;
+        }
 
-    private boolean getBooleanPref(String key, boolean defValue) {
+        // Read every preference in one IPC, rather than one per key
         try {
-            return mPreferences.getBoolean(key, defValue);
+            prefs = new PreferenceSnapshot(mPreferences.getAll());
         } catch (RemotePreferenceAccessException e) {
-            Xlog.e("Failed to read preference: %s", key, e);
-            return defValue;
+            // Don't cache the defaults, so we try again next time
+            Xlog.e("Failed to read preferences", e);
+            return PreferenceSnapshot.defaults();
         }
+        mPreferenceSnapshot = prefs;
+        return prefs;
+    }
+
+    private void registerPreferenceObserver(Context context) {
+        ContentObserver contentObserver = new ContentObserver(mWorker.getHandler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                Xlog.i("Preferences updated, marking snapshot as dirty");
+                mPreferenceSnapshot = null;
+            }
+        };
+
+        Uri uri = Uri.parse("content://" + PreferenceConsts.REMOTE_PREFS_AUTHORITY);
+        context.getContentResolver().registerContentObserver(uri, true, contentObserver);
     }
 
     private void afterConstructorHandler(XC_MethodHook.MethodHookParam param) {
         Context context = (Context)param.args[1];
         if (mContext == null) {
             mContext = context;
-            mFilterLoader = new SmsFilterLoader(context);
+            mWorker = new WorkerThread("NekoSMS-Worker");
+            mEventLog = new SmsEventLog(context, mWorker);
+            mFilterLoader = new SmsFilterLoader(context, mWorker, mEventLog);
+            mFloodDetector = new FloodDetector();
+            mTimings = new HookStageTimings(context, mWorker, mEventLog);
+            mBlockedSmsQueue = new BlockedSmsQueue(context, mWorker, mTimings, mEventLog);
+            mContactNumberCache = new ContactNumberCache(context, mWorker);
             mPreferences = new RemotePreferences(context,
                 PreferenceConsts.REMOTE_PREFS_AUTHORITY,
                 PreferenceConsts.FILE_MAIN,
                 true);
+            registerPreferenceObserver(context);
             grantWriteSmsPermissions(context);
         }
     }
 
+    private static long getRemainingNanos(long startTime, long budgetNanos) {
+        if (budgetNanos <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return budgetNanos - (System.nanoTime() - startTime);
+    }
+
     private void beforeDispatchIntentHandler(XC_MethodHook.MethodHookParam param, int receiverIndex) {
         Intent intent = (Intent)param.args[0];
         String action = intent.getAction();
@@ -199,19 +211,58 @@ public class SmsHandlerHook implements IXposedHookLoadPackage {
         }
 
         // Skip everything if the global killswitch is toggled
-        if (!getBooleanPref(PreferenceConsts.KEY_ENABLE, PreferenceConsts.KEY_ENABLE_DEFAULT)) {
+        long startTime = System.nanoTime();
+        PreferenceSnapshot prefs = getPreferences();
+        long stageTime = mTimings.record(SmsHookStage.PREFERENCES, startTime);
+        if (!prefs.isEnabled()) {
             Xlog.i("SMS blocking disabled, exiting");
             return;
         }
 
-        SmsMessageData message = SmsMessageData.fromIntent(intent);
-        String sender = message.getSender();
-        String body = message.getBody();
+        // Anything we wait on here holds up SMS delivery, so if the
+        // filters or contacts are slow to load (e.g. because the app
+        // process is being started), let the message through rather
+        // than stalling the phone process. Loading carries on in the
+        // background, so the next message will most likely make it.
+        long budgetNanos = prefs.getLatencyBudgetMillis() * 1000000L;
+
+        // If nothing could possibly block the message, don't spend any
+        // time on it (in particular, don't look up the sender in the
+        // contacts). Likewise, if nothing looks at the message body,
+        // it is only assembled once we know the message is blocked.
         Xlog.i("Received a new SMS message");
-        if (getBooleanPref(PreferenceConsts.KEY_VERBOSE_LOGGING, PreferenceConsts.KEY_VERBOSE_LOGGING_DEFAULT)) {
+        SmsMessage[] messageParts = SmsMessageUtils.fromIntent(intent);
+        int subId = SmsMessageUtils.getSubId(messageParts[0]);
+        mEventLog.record(SmsEvent.TYPE_RECEIVED, subId, messageParts.length);
+        stageTime = mTimings.record(SmsHookStage.PARSE, stageTime);
+        mFilterLoader.setMemoryBudget(prefs.getFilterMemoryBudgetKb() * 1024L);
+        SmsFilterSnapshot filters = mFilterLoader.awaitFilters(getRemainingNanos(startTime, budgetNanos));
+        if (filters == null) {
+            Xlog.w("Allowing message (filters took too long to load)");
+            mEventLog.record(SmsEvent.TYPE_VERDICT, SmsEvent.VERDICT_ALLOW_FILTERS_TIMEOUT, -1);
+            mTimings.recordFailOpen(SmsHookStage.FILTERS);
+            mTimings.record(SmsHookStage.FILTERS, stageTime);
+            mTimings.record(SmsHookStage.TOTAL, startTime);
+            return;
+        }
+        boolean floodEnabled = prefs.getFloodThreshold() > 0;
+        if (!floodEnabled && !mFilterLoader.hasBlacklistRules(filters, subId)) {
+            Xlog.i("Allowing message (no rules can block it)");
+            mEventLog.record(SmsEvent.TYPE_VERDICT, SmsEvent.VERDICT_ALLOW_NO_RULES, -1);
+            mTimings.record(SmsHookStage.TOTAL, startTime);
+            return;
+        }
+        boolean needsBody = floodEnabled || mFilterLoader.needsMessageBody(filters, subId);
+
+        stageTime = System.nanoTime();
+        SmsMessageData message = SmsMessageData.fromMessageParts(messageParts, needsBody);
+        stageTime = mTimings.record(SmsHookStage.NORMALIZE, stageTime);
+        String sender = message.getSender();
+        CharSequence body = message.getBodySequence();
+        if (prefs.isVerboseLogging()) {
             Xlog.i("Sender: %s", StringUtils.escape(sender));
             Xlog.i("Body: %s", StringUtils.escape(body));
-        } else {
+        } else if (Xlog.VERBOSE) {
             Xlog.v("Sender: %s", StringUtils.escape(sender));
             Xlog.v("Body: %s", StringUtils.escape(body));
         }
@@ -219,27 +270,69 @@ public class SmsHandlerHook implements IXposedHookLoadPackage {
         // Skip if "whitelist contacts" is enabled and the message
         // is from a contact (this is done in the module so we don't
         // need contact permissions on the app itself).
-        boolean allowContacts = getBooleanPref(
-            PreferenceConsts.KEY_WHITELIST_CONTACTS,
-            PreferenceConsts.KEY_WHITELIST_CONTACTS_DEFAULT);
-        if (allowContacts && ContactUtils.isContact(mContext, sender)) {
-            Xlog.i("Allowing message (contact whitelist)");
-            return;
+        if (prefs.isWhitelistContacts()) {
+            stageTime = System.nanoTime();
+            boolean isContact;
+            try {
+                isContact = mContactNumberCache.isContact(sender, getRemainingNanos(startTime, budgetNanos));
+            } catch (TimeoutException e) {
+                Xlog.w("Allowing message (contacts took too long to load)");
+                mEventLog.record(SmsEvent.TYPE_VERDICT, SmsEvent.VERDICT_ALLOW_CONTACTS_TIMEOUT, -1);
+                mTimings.recordFailOpen(SmsHookStage.CONTACTS);
+                mTimings.record(SmsHookStage.CONTACTS, stageTime);
+                mTimings.record(SmsHookStage.TOTAL, startTime);
+                return;
+            }
+            mTimings.record(SmsHookStage.CONTACTS, stageTime);
+            if (isContact) {
+                Xlog.i("Allowing message (contact whitelist)");
+                mEventLog.record(SmsEvent.TYPE_VERDICT, SmsEvent.VERDICT_ALLOW_CONTACT, -1);
+                mTimings.record(SmsHookStage.TOTAL, startTime);
+                return;
+            }
         }
 
-        if (!mFilterLoader.shouldBlockMessage(sender, body)) {
-            return;
+        // During SMS bombing, block everything that is part of the
+        // flood without evaluating any rules that look at the message
+        // body, since attackers control it. Whitelisted senders (e.g.
+        // for one-time codes) are still let through.
+        stageTime = System.nanoTime();
+        mFloodDetector.setThreshold(prefs.getFloodThreshold());
+        if (mFloodDetector.recordMessage(sender, body)) {
+            if (mFilterLoader.isWhitelistedSender(filters, subId, sender)) {
+                mTimings.record(SmsHookStage.FILTERS, stageTime);
+                mTimings.record(SmsHookStage.TOTAL, startTime);
+                return;
+            }
+            Xlog.i("Blocking message (flood detected)");
+            mEventLog.record(SmsEvent.TYPE_VERDICT, SmsEvent.VERDICT_BLOCK_FLOOD, -1);
+        } else {
+            mFilterLoader.setProfilingEnabled(prefs.isProfileFilters());
+            boolean blocked = mFilterLoader.shouldBlockMessage(filters, subId, sender, body);
+            if (!blocked) {
+                mTimings.record(SmsHookStage.FILTERS, stageTime);
+                mTimings.record(SmsHookStage.TOTAL, startTime);
+                return;
+            }
         }
+        stageTime = mTimings.record(SmsHookStage.FILTERS, stageTime);
 
         // Order is important here! First, save a copy of the message to
-        // the blocked message list and notify everyone about it. THEN,
-        // we can delete the original. If it were the other way around,
-        // any bug in our code would cause the message to disappear. This
-        // way, the worst that can happen is that the user gets two copies.
-        Uri messageUri = BlockedSmsLoader.get().insert(mContext, message);
-        broadcastBlockedSms(messageUri);
+        // the blocked message journal. THEN, we can delete the original.
+        // If it were the other way around, any bug in our code would cause
+        // the message to disappear. This way, the worst that can happen is
+        // that the user gets two copies. The message is copied into the
+        // blocked message list (and everyone is notified about it) later,
+        // so that we don't hold up the SMS handler.
+        if (!needsBody) {
+            message.setBodyFromParts(messageParts);
+        }
+        mBlockedSmsQueue.add(message);
+        stageTime = mTimings.record(SmsHookStage.JOURNAL, stageTime);
         finishSmsBroadcast(param.thisObject, param.args[receiverIndex]);
         param.setResult(null);
+        mTimings.record(SmsHookStage.DELETE, stageTime);
+        mTimings.record(SmsHookStage.TOTAL, startTime);
     }
 
     private void hookConstructor19(XC_LoadPackage.LoadPackageParam lpparam) {
@@ -316,6 +409,7 @@ public class SmsHandlerHook implements IXposedHookLoadPackage {
     }
 
     private void hookSmsHandler(XC_LoadPackage.LoadPackageParam lpparam) {
+        mReflection = new SmsHandlerReflection(lpparam.classLoader);
         hookConstructor(lpparam);
         hookDispatchIntent(lpparam);
     }
@@ -0,0 +1,123 @@
+package com.crossbowffs.nekosms.xposed;
+
+import android.os.Build;
+import com.crossbowffs.nekosms.utils.ReflectionUtils;
+import com.crossbowffs.nekosms.utils.Xlog;
+import de.robv.android.xposed.XposedHelpers;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+
+/**
+ * Reflective handles to the InboundSmsHandler internals used when
+ * blocking a message. They are resolved once when the hooks are
+ * installed, rather than looked up by name every time a message is
+ * blocked, and anything missing is reported right away instead of
+ * when the first message needs to be blocked.
+ */
+/* package */ class SmsHandlerReflection {
+    private static class ReceiverFields {
+        private final Field mDeleteWhere;
+        private final Field mDeleteWhereArgs;
+
+        public ReceiverFields(Class<?> receiverClass) {
+            mDeleteWhere = findField(receiverClass, "mDeleteWhere");
+            mDeleteWhereArgs = findField(receiverClass, "mDeleteWhereArgs");
+        }
+    }
+
+    private static final String TELEPHONY_PACKAGE = "com.android.internal.telephony";
+    private static final String SMS_HANDLER_CLASS = TELEPHONY_PACKAGE + ".InboundSmsHandler";
+    private static final String SMS_RECEIVER_CLASS = SMS_HANDLER_CLASS + "$SmsBroadcastReceiver";
+
+    private final Method mDeleteFromRawTable;
+    private final boolean mDeleteFromRawTableHasType;
+    private final Method mSendMessage;
+    private final HashMap<Class<?>, ReceiverFields> mReceiverFields = new HashMap<>();
+
+    public SmsHandlerReflection(ClassLoader classLoader) {
+        Class<?> handlerClass = XposedHelpers.findClass(SMS_HANDLER_CLASS, classLoader);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            mDeleteFromRawTable = findMethod(handlerClass, "deleteFromRawTable", String.class, String[].class, int.class);
+            mDeleteFromRawTableHasType = true;
+        } else {
+            mDeleteFromRawTable = findMethod(handlerClass, "deleteFromRawTable", String.class, String[].class);
+            mDeleteFromRawTableHasType = false;
+        }
+        mSendMessage = findMethod(handlerClass, "sendMessage", int.class);
+
+        // The receiver is passed to dispatchIntent() as a plain
+        // BroadcastReceiver, so fields are also resolved by the
+        // actual class if it turns out to be something else
+        Class<?> receiverClass = XposedHelpers.findClassIfExists(SMS_RECEIVER_CLASS, classLoader);
+        if (receiverClass != null) {
+            mReceiverFields.put(receiverClass, new ReceiverFields(receiverClass));
+        } else {
+            Xlog.e("Could not find class: %s", SMS_RECEIVER_CLASS);
+        }
+    }
+
+    private static Method findMethod(Class<?> cls, String methodName, Class<?>... paramTypes) {
+        // Also searches superclasses, since sendMessage() is
+        // inherited from StateMachine
+        for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+            try {
+                Method method = c.getDeclaredMethod(methodName, paramTypes);
+                method.setAccessible(true);
+                Xlog.i("Resolved method: %s#%s", c.getName(), methodName);
+                return method;
+            } catch (NoSuchMethodException e) {
+                // Try the superclass
+            }
+        }
+        Xlog.e("Could not find method: %s#%s", cls.getName(), methodName);
+        return null;
+    }
+
+    private static Field findField(Class<?> cls, String fieldName) {
+        try {
+            Field field = XposedHelpers.findField(cls, fieldName);
+            Xlog.i("Resolved field: %s#%s", cls.getName(), fieldName);
+            return field;
+        } catch (NoSuchFieldError e) {
+            Xlog.e("Could not find field: %s#%s", cls.getName(), fieldName);
+            return null;
+        }
+    }
+
+    private static <T> T require(T handle, String name) {
+        if (handle == null) {
+            throw new IllegalStateException("InboundSmsHandler internals not found: " + name);
+        }
+        return handle;
+    }
+
+    private ReceiverFields getReceiverFields(Object smsReceiver) {
+        Class<?> receiverClass = smsReceiver.getClass();
+        synchronized (mReceiverFields) {
+            ReceiverFields fields = mReceiverFields.get(receiverClass);
+            if (fields == null) {
+                fields = new ReceiverFields(receiverClass);
+                mReceiverFields.put(receiverClass, fields);
+            }
+            return fields;
+        }
+    }
+
+    public void deleteFromRawTable(Object smsHandler, Object smsReceiver, int deleteType) {
+        ReceiverFields fields = getReceiverFields(smsReceiver);
+        Object deleteWhere = ReflectionUtils.getFieldValue(require(fields.mDeleteWhere, "mDeleteWhere"), smsReceiver);
+        Object deleteWhereArgs = ReflectionUtils.getFieldValue(require(fields.mDeleteWhereArgs, "mDeleteWhereArgs"), smsReceiver);
+        Method method = require(mDeleteFromRawTable, "deleteFromRawTable");
+        if (mDeleteFromRawTableHasType) {
+            ReflectionUtils.invoke(method, smsHandler, deleteWhere, deleteWhereArgs, deleteType);
+        } else {
+            ReflectionUtils.invoke(method, smsHandler, deleteWhere, deleteWhereArgs);
+        }
+    }
+
+    public void sendMessage(Object smsHandler, int what) {
+        ReflectionUtils.invoke(require(mSendMessage, "sendMessage"), smsHandler, what);
+    }
+}
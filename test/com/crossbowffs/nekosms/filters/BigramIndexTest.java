@@ -0,0 +1,155 @@
+package com.crossbowffs.nekosms.filters;
+
+import com.crossbowffs.nekosms.data.SmsFilterAction;
+import com.crossbowffs.nekosms.data.SmsFilterData;
+import com.crossbowffs.nekosms.data.SmsFilterMode;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BigramIndexTest {
+    private static final String[] PATTERNS = {
+        "\u8d37\u6b3e",
+        "\u65e0\u62b5\u62bc\u8d37\u6b3e",
+        "\u4e2d\u5956\u4e86",
+        "VIP\u4f1a\u5458",
+        "\u4f1a\u5458vip",
+        "\u70b9\u51fb \u94fe\u63a5",
+        "\u30dd\u30a4\u30f3\u30c8",
+        "\u8d37",
+        "\u5956",
+        "a",
+        "vip",
+    };
+
+    private static final String[] MESSAGES = {
+        "",
+        "a",
+        "\u8d37",
+        "\u60a8\u597d\uff0c\u65e0\u62b5\u62bc\u8d37\u6b3e\uff0c\u5229\u606f\u4f4e",
+        "\u65e0\u62b5\u62bc \u8d37\u6b3e",
+        "\u606d\u559c\u60a8\u4e2d\u5956\u4e86\uff01",
+        "\u4e2d\u5956",
+        "\u5c0a\u8d35\u7684VIP\u4f1a\u5458\u60a8\u597d",
+        "\u5c0a\u8d35\u7684vip \u4f1a\u5458\u60a8\u597d",
+        "\u4f1a\u5458VIP\u4e13\u4eab",
+        "\u8bf7\u70b9\u51fb \u94fe\u63a5\u9886\u53d6",
+        "\u8bf7\u70b9\u51fb\u94fe\u63a5\u9886\u53d6",
+        "\u30dd\u30a4\u30f3\u30c8\u304c\u8caf\u307e\u308a\u307e\u3057\u305f",
+        "Your loan \u8d37\u6b3e is approved",
+        "Hello world",
+    };
+
+    private static SmsFilter createContainsFilter(long id, String pattern) {
+        SmsFilterData data = new SmsFilterData();
+        data.setId(id);
+        data.setAction(SmsFilterAction.BLOCK);
+        data.getBodyPattern().setMode(SmsFilterMode.CONTAINS).setPattern(pattern);
+        return new SmsFilter(data);
+    }
+
+    private static List<SmsFilter> createFilters() {
+        List<SmsFilter> filters = new ArrayList<>();
+        for (int i = 0; i < PATTERNS.length; ++i) {
+            filters.add(createContainsFilter(i, PATTERNS[i]));
+        }
+        return filters;
+    }
+
+    private static SmsFilterContext createContext(String body) {
+        return new SmsFilterContext("10086", body, new SimHashIndex());
+    }
+
+    @Test
+    public void testCandidatesIncludeLinearMatches() {
+        // A rule found by a linear scan must also be found through
+        // the index, checked one rule at a time so that an earlier
+        // match can't hide a later one
+        for (SmsFilter filter : createFilters()) {
+            int[] bigrams = BigramIndex.getIndexableBigrams(filter);
+            if (bigrams == null) {
+                continue;
+            }
+            BigramIndex index = new BigramIndex();
+            index.add(filter, bigrams);
+            index.build();
+            for (String message : MESSAGES) {
+                boolean expected = filter.match(createContext(message));
+                SmsFilter actual = index.findMatch(createContext(message), false);
+                assertEquals(PATTERNS[(int)filter.getId()] + " in " + message, expected, actual != null);
+            }
+        }
+    }
+
+    @Test
+    public void testIndexMatchesLinearScan() {
+        List<SmsFilter> filters = createFilters();
+        BigramIndex index = new BigramIndex();
+        List<SmsFilter> indexed = new ArrayList<>();
+        for (SmsFilter filter : filters) {
+            int[] bigrams = BigramIndex.getIndexableBigrams(filter);
+            if (bigrams != null) {
+                index.add(filter, bigrams);
+                indexed.add(filter);
+            }
+        }
+        index.build();
+
+        for (String message : MESSAGES) {
+            boolean expected = false;
+            for (SmsFilter filter : indexed) {
+                expected |= filter.match(createContext(message));
+            }
+            SmsFilter actual = index.findMatch(createContext(message), false);
+            assertEquals(message, expected, actual != null);
+            if (actual != null) {
+                assertTrue(message, actual.match(createContext(message)));
+            }
+        }
+    }
+
+    @Test
+    public void testShortPatternsAreNotIndexed() {
+        // Patterns without a CJK bigram can't be found through the
+        // index, so they have to be left for the linear scan
+        assertNull(BigramIndex.getIndexableBigrams(createContainsFilter(0, "\u8d37")));
+        assertNull(BigramIndex.getIndexableBigrams(createContainsFilter(0, "a")));
+        assertNull(BigramIndex.getIndexableBigrams(createContainsFilter(0, "vip")));
+        assertNotNull(BigramIndex.getIndexableBigrams(createContainsFilter(0, "VIP\u4f1a\u5458")));
+    }
+
+    @Test
+    public void testFilterIndexMatchesLinearScan() {
+        // Through the full index, one-character and Latin patterns
+        // are still found by the linear scan
+        List<SmsFilter> filters = createFilters();
+        SmsFilterIndex index = new SmsFilterIndex(0);
+        for (SmsFilter filter : filters) {
+            index.add(filter);
+        }
+        index.build();
+
+        for (String message : MESSAGES) {
+            SmsFilter expected = null;
+            for (SmsFilter filter : filters) {
+                if (filter.match(createContext(message))) {
+                    expected = filter;
+                    break;
+                }
+            }
+            SmsFilter actual = index.findMatch(createContext(message), false);
+            if (expected == null) {
+                assertNull(message, actual);
+            } else {
+                assertNotNull(message, actual);
+                assertTrue(message, actual.match(createContext(message)));
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.crossbowffs.nekosms.filters;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SimHashIndexTest {
+    private static final int MAX_DISTANCE = SimHashIndex.MAX_DISTANCE;
+
+    private static long flipBits(long fingerprint, int count) {
+        // Spread the flipped bits out, so that they land in
+        // as many different blocks as possible
+        for (int i = 0; i < count; ++i) {
+            fingerprint ^= 1L << (i * 64 / count);
+        }
+        return fingerprint;
+    }
+
+    private static long[] randomFingerprints(int count) {
+        Random random = new Random(42);
+        long[] fingerprints = new long[count];
+        for (int i = 0; i < count; ++i) {
+            fingerprints[i] = random.nextLong();
+        }
+        return fingerprints;
+    }
+
+    @Test
+    public void testExactMatch() {
+        SimHashIndex index = new SimHashIndex();
+        long fingerprint = 0x0123456789abcdefL;
+        index.add(fingerprint);
+        assertTrue(index.containsNear(fingerprint, 0));
+        assertFalse(index.containsNear(flipBits(fingerprint, 1), 0));
+    }
+
+    @Test
+    public void testMaxDistance() {
+        SimHashIndex index = new SimHashIndex();
+        for (long fingerprint : randomFingerprints(16)) {
+            index.add(fingerprint);
+            assertTrue(index.containsNear(flipBits(fingerprint, MAX_DISTANCE), MAX_DISTANCE));
+            assertFalse(index.containsNear(flipBits(fingerprint, MAX_DISTANCE), MAX_DISTANCE - 1));
+            assertFalse(index.containsNear(flipBits(fingerprint, MAX_DISTANCE + 1), MAX_DISTANCE));
+        }
+    }
+
+    @Test
+    public void testMaxDistanceInOneBlock() {
+        // All differing bits next to each other, so that only
+        // the other blocks are left to find the match by
+        SimHashIndex index = new SimHashIndex();
+        long fingerprint = 0x0123456789abcdefL;
+        index.add(fingerprint);
+        long near = fingerprint ^ ((1L << MAX_DISTANCE) - 1);
+        assertTrue(index.containsNear(near, MAX_DISTANCE));
+        assertFalse(index.containsNear(near, MAX_DISTANCE - 1));
+    }
+
+    @Test
+    public void testOldestReplacedWhenFull() {
+        SimHashIndex index = new SimHashIndex();
+        int evicted = 10;
+        long[] fingerprints = randomFingerprints(SimHashIndex.CAPACITY + evicted);
+        for (long fingerprint : fingerprints) {
+            index.add(fingerprint);
+        }
+        for (int i = 0; i < fingerprints.length; ++i) {
+            boolean expected = i >= evicted;
+            assertTrue(index.containsNear(fingerprints[i], 0) == expected);
+            assertTrue(index.containsNear(flipBits(fingerprints[i], MAX_DISTANCE), MAX_DISTANCE) == expected);
+        }
+    }
+
+    @Test
+    public void testWrapsMoreThanOnce() {
+        SimHashIndex index = new SimHashIndex();
+        long[] fingerprints = randomFingerprints(SimHashIndex.CAPACITY * 3 + 1);
+        for (long fingerprint : fingerprints) {
+            index.add(fingerprint);
+        }
+        for (int i = 0; i < fingerprints.length; ++i) {
+            boolean expected = i >= fingerprints.length - SimHashIndex.CAPACITY;
+            assertTrue(index.containsNear(fingerprints[i], MAX_DISTANCE) == expected);
+        }
+    }
+
+    @Test
+    public void testClear() {
+        SimHashIndex index = new SimHashIndex();
+        long[] fingerprints = randomFingerprints(SimHashIndex.CAPACITY + 1);
+        for (long fingerprint : fingerprints) {
+            index.add(fingerprint);
+        }
+        index.clear();
+        for (long fingerprint : fingerprints) {
+            assertFalse(index.containsNear(fingerprint, MAX_DISTANCE));
+        }
+        index.add(fingerprints[0]);
+        assertTrue(index.containsNear(fingerprints[0], 0));
+    }
+}
@@ -0,0 +1,103 @@
+package com.crossbowffs.nekosms.filters;
+
+import com.crossbowffs.nekosms.data.SmsFilterAction;
+import com.crossbowffs.nekosms.data.SmsFilterData;
+import com.crossbowffs.nekosms.data.SmsFilterMode;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SmsFilterIndexTest {
+    private static final String SENDER = "10086";
+
+    private static SmsFilter createFilter(SmsFilterAction action, String sender, String body) {
+        SmsFilterData data = new SmsFilterData();
+        data.setAction(action);
+        if (sender != null) {
+            data.getSenderPattern().setMode(SmsFilterMode.EQUALS).setPattern(sender);
+        }
+        if (body != null) {
+            data.getBodyPattern().setMode(SmsFilterMode.CONTAINS).setPattern(body);
+        }
+        return new SmsFilter(data);
+    }
+
+    private static SmsFilterIndex createIndex(SmsFilter... filters) {
+        SmsFilterIndex index = new SmsFilterIndex(0);
+        for (SmsFilter filter : filters) {
+            index.add(filter);
+        }
+        index.build();
+        return index;
+    }
+
+    private static SmsFilter findMatch(SmsFilterIndex index, String body) {
+        return index.findMatch(new SmsFilterContext(SENDER, body, new SimHashIndex()), false);
+    }
+
+    @Test
+    public void testNoMatchWithoutBodyRules() {
+        SmsFilterIndex index = createIndex(
+            createFilter(SmsFilterAction.BLOCK, "95555", null),
+            createFilter(SmsFilterAction.ALLOW, "95588", null));
+        assertNull(findMatch(index, "hello"));
+        assertTrue(index.isSenderOnlyVerdict(null));
+    }
+
+    @Test
+    public void testNoMatchWithBodyRules() {
+        SmsFilterIndex blacklistIndex = createIndex(createFilter(SmsFilterAction.BLOCK, null, "loan"));
+        assertNull(findMatch(blacklistIndex, "hello"));
+        assertFalse(blacklistIndex.isSenderOnlyVerdict(null));
+
+        SmsFilterIndex whitelistIndex = createIndex(createFilter(SmsFilterAction.ALLOW, null, "code"));
+        assertNull(findMatch(whitelistIndex, "hello"));
+        assertFalse(whitelistIndex.isSenderOnlyVerdict(null));
+    }
+
+    @Test
+    public void testSenderBlockWithoutWhitelistBodyRules() {
+        SmsFilter block = createFilter(SmsFilterAction.BLOCK, SENDER, null);
+        SmsFilterIndex index = createIndex(block, createFilter(SmsFilterAction.BLOCK, null, "loan"));
+        assertSame(block, findMatch(index, "hello"));
+        assertSame(block, findMatch(index, "loan"));
+        assertTrue(index.isSenderOnlyVerdict(block));
+    }
+
+    @Test
+    public void testSenderBlockWithWhitelistBodyRules() {
+        SmsFilter block = createFilter(SmsFilterAction.BLOCK, SENDER, null);
+        SmsFilter allow = createFilter(SmsFilterAction.ALLOW, null, "code");
+        SmsFilterIndex index = createIndex(block, allow);
+        assertSame(block, findMatch(index, "hello"));
+        assertFalse(index.isSenderOnlyVerdict(block));
+
+        // This is why the verdict above must not be cached
+        assertSame(allow, findMatch(index, "your code is 1234"));
+    }
+
+    @Test
+    public void testSenderAllow() {
+        SmsFilter allow = createFilter(SmsFilterAction.ALLOW, SENDER, null);
+        SmsFilterIndex index = createIndex(
+            allow,
+            createFilter(SmsFilterAction.ALLOW, null, "code"),
+            createFilter(SmsFilterAction.BLOCK, null, "loan"));
+        assertSame(allow, findMatch(index, "loan"));
+        assertTrue(index.isSenderOnlyVerdict(allow));
+    }
+
+    @Test
+    public void testBodyMatch() {
+        SmsFilter block = createFilter(SmsFilterAction.BLOCK, null, "loan");
+        SmsFilter allow = createFilter(SmsFilterAction.ALLOW, SENDER, "code");
+        SmsFilterIndex index = createIndex(block, allow);
+        assertSame(block, findMatch(index, "loan"));
+        assertFalse(index.isSenderOnlyVerdict(block));
+        assertSame(allow, findMatch(index, "code"));
+        assertFalse(index.isSenderOnlyVerdict(allow));
+    }
+}
@@ -0,0 +1,33 @@
+package com.crossbowffs.nekosms.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConfusableSkeletonTest {
+    @Test
+    public void testPrecomposedAccents() {
+        // Precomposed letters, as they arrive after NFC normalization
+        assertEquals("paypal", ConfusableSkeleton.skeleton("p\u00e0ypal"));
+        assertEquals("paypal", ConfusableSkeleton.skeleton("\u1e55aypal"));
+        assertEquals("paypal", ConfusableSkeleton.skeleton("P\u00c0YP\u00c4L"));
+    }
+
+    @Test
+    public void testIgnorableCharacters() {
+        assertEquals("paypal", ConfusableSkeleton.skeleton("pa\u0300ypal"));
+        assertEquals("paypal", ConfusableSkeleton.skeleton("pay\u200bpal"));
+    }
+
+    @Test
+    public void testLookalikes() {
+        assertEquals("paypal", ConfusableSkeleton.skeleton("\u0440\u0430ypal"));
+        assertEquals("paypal", ConfusableSkeleton.skeleton("\uff30\uff41\uff59\uff50\uff41\uff4c"));
+        assertEquals("paypal", ConfusableSkeleton.skeleton("PAYPAL"));
+    }
+
+    @Test
+    public void testRecomposesHangul() {
+        assertEquals("\ud55c\uad6d\uc5b4", ConfusableSkeleton.skeleton("\ud55c\uad6d\uc5b4"));
+    }
+}
@@ -0,0 +1,119 @@
+package com.crossbowffs.nekosms.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MultipartCharSequenceTest {
+    // Includes empty parts, single character parts, and a surrogate
+    // pair that is split between two parts
+    private static final String[][] PARTS = {
+        {"Hello, ", "World", "!"},
+        {"", "abc", "", "", "DEF", "g", ""},
+        {"a", "b", "c", "d"},
+        {"\u60a8\u597d\ud83d", "\ude00\u518d\u89c1"},
+        {"single part"},
+    };
+
+    private static String concat(String[] parts) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testCharAt() {
+        for (String[] parts : PARTS) {
+            String expected = concat(parts);
+            MultipartCharSequence actual = new MultipartCharSequence(parts);
+            assertEquals(expected.length(), actual.length());
+            // Forwards and backwards, since the last used part is cached
+            for (int i = 0; i < expected.length(); ++i) {
+                assertEquals(expected, expected.charAt(i), actual.charAt(i));
+            }
+            for (int i = expected.length() - 1; i >= 0; --i) {
+                assertEquals(expected, expected.charAt(i), actual.charAt(i));
+            }
+        }
+    }
+
+    @Test
+    public void testCharAtOutOfBounds() {
+        MultipartCharSequence text = new MultipartCharSequence(PARTS[0]);
+        for (int index : new int[] {-1, text.length()}) {
+            try {
+                text.charAt(index);
+                fail("No exception for index " + index);
+            } catch (IndexOutOfBoundsException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testSubSequence() {
+        for (String[] parts : PARTS) {
+            String expected = concat(parts);
+            MultipartCharSequence actual = new MultipartCharSequence(parts);
+            for (int start = 0; start <= expected.length(); ++start) {
+                for (int end = start; end <= expected.length(); ++end) {
+                    assertEquals(expected.substring(start, end), actual.subSequence(start, end).toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testToString() {
+        for (String[] parts : PARTS) {
+            assertEquals(concat(parts), new MultipartCharSequence(parts).toString());
+        }
+    }
+
+    @Test
+    public void testRegionMatches() {
+        for (String[] parts : PARTS) {
+            String expected = concat(parts);
+            MultipartCharSequence actual = new MultipartCharSequence(parts);
+            // Every substring, in its original and swapped case, at
+            // every offset, so needles cross part boundaries too
+            for (int start = 0; start < expected.length(); ++start) {
+                for (int end = start + 1; end <= expected.length(); ++end) {
+                    String needle = expected.substring(start, end);
+                    String swapped = swapCase(needle);
+                    for (int offset = -1; offset <= expected.length(); ++offset) {
+                        assertEquals(needle + " at " + offset,
+                            expected.regionMatches(false, offset, needle, 0, needle.length()),
+                            StringUtils.regionMatches(actual, offset, needle, false));
+                        assertEquals(swapped + " at " + offset,
+                            expected.regionMatches(true, offset, swapped, 0, swapped.length()),
+                            StringUtils.regionMatches(actual, offset, swapped, true));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testContains() {
+        MultipartCharSequence text = new MultipartCharSequence(PARTS[0]);
+        assertTrue(StringUtils.contains(text, "o, W", false));
+        assertTrue(StringUtils.contains(text, "WORLD!", true));
+        assertFalse(StringUtils.contains(text, "WORLD!", false));
+        assertFalse(StringUtils.contains(text, "World!!", true));
+    }
+
+    private static String swapCase(String str) {
+        StringBuilder sb = new StringBuilder(str.length());
+        for (int i = 0; i < str.length(); ++i) {
+            char c = str.charAt(i);
+            sb.append(Character.isUpperCase(c) ? Character.toLowerCase(c) : Character.toUpperCase(c));
+        }
+        return sb.toString();
+    }
+}